@@ -1,6 +1,7 @@
 plugins {
 	id("java")
 	id("java-library")
+	id("me.champeau.jmh") version "0.6.8"
 }
 
 java {
@@ -30,3 +31,26 @@ dependencies {
 tasks.withType<Test> {
 	useJUnitPlatform()
 }
+
+// Runs the tests again with the JFR instrumentation in WeightedRandomSet compiled in, test runs them without it
+val jfrTest by tasks.registering(Test::class) {
+	description = "Runs the tests with WeightedRandomSet JFR events enabled."
+	group = "verification"
+	testClassesDirs = sourceSets.test.get().output.classesDirs
+	classpath = sourceSets.test.get().runtimeClasspath
+	systemProperty("net.moulberry.utils.probability.jfr", "true")
+	shouldRunAfter(tasks.test)
+}
+
+tasks.check {
+	dependsOn(jfrTest)
+}
+
+// Run with ./gradlew jmh, or ./gradlew jmh -PjmhIncludes=<regex> for a subset
+jmh {
+	jmhVersion.set("1.35")
+	profilers.add("gc")
+	if (project.hasProperty("jmhIncludes")) {
+		includes.add(project.property("jmhIncludes") as String)
+	}
+}
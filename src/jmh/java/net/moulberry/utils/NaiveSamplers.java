@@ -0,0 +1,91 @@
+package net.moulberry.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Baselines the weighted sets are compared against
+ */
+final class NaiveSamplers {
+
+    private NaiveSamplers() {}
+
+    /**
+     * Scans the weights until the running sum passes a random value, O(n) to sample and O(1) to add or remove
+     */
+    static final class LinearScan {
+        private int[] elements;
+        private float[] weights;
+        private int size = 0;
+        private double totalWeight = 0;
+
+        LinearScan(int capacity) {
+            this.elements = new int[capacity];
+            this.weights = new float[capacity];
+        }
+
+        void add(int element, float weight) {
+            if (size == elements.length) {
+                elements = Arrays.copyOf(elements, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            elements[size] = element;
+            weights[size] = weight;
+            size++;
+            totalWeight += weight;
+        }
+
+        int sample() {
+            return elements[sampleIndex()];
+        }
+
+        /**
+         * Removes a sampled element by swapping the last element into its place
+         */
+        int pop() {
+            int index = sampleIndex();
+            int element = elements[index];
+            totalWeight -= weights[index];
+
+            size--;
+            elements[index] = elements[size];
+            weights[index] = weights[size];
+            return element;
+        }
+
+        private int sampleIndex() {
+            double value = ThreadLocalRandom.current().nextDouble(totalWeight);
+            for (int i = 0; i < size; i++) {
+                value -= weights[i];
+                if (value < 0) return i;
+            }
+            return size - 1;
+        }
+    }
+
+    /**
+     * Keys every element by its cumulative weight and looks up the ceiling of a random value,
+     * O(log n) to sample but O(n) to change, so it's only used for static sets
+     */
+    static final class CumulativeTreeMap {
+        private final TreeMap<Double, Integer> cumulative = new TreeMap<>();
+        private final double totalWeight;
+
+        CumulativeTreeMap(float[] weights) {
+            double sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                sum += weights[i];
+                cumulative.put(sum, i);
+            }
+            this.totalWeight = sum;
+        }
+
+        int sample() {
+            Map.Entry<Double, Integer> entry = cumulative.higherEntry(ThreadLocalRandom.current().nextDouble(totalWeight));
+            return entry == null ? cumulative.lastEntry().getValue() : entry.getValue();
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package net.moulberry.utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VectorUtils3dBenchmark {
+
+    private static final int RAYS = 1024;
+
+    private static final VectorUtils3d<Vec3f> VECTOR_UTILS = new VectorUtils3d<>() {
+        @Override
+        protected Vec3f vec3f(float x, float y, float z) {
+            return new Vec3f(x, y, z);
+        }
+
+        @Override
+        protected float x(Vec3f vec) {
+            return vec.x();
+        }
+
+        @Override
+        protected float y(Vec3f vec) {
+            return vec.y();
+        }
+
+        @Override
+        protected float z(Vec3f vec) {
+            return vec.z();
+        }
+
+        @Override
+        protected Vec3f normalize(Vec3f in) {
+            float length = (float) Math.sqrt(dot(in, in));
+            return new Vec3f(in.x() / length, in.y() / length, in.z() / length);
+        }
+
+        @Override
+        protected float dot(Vec3f one, Vec3f two) {
+            return one.x() * two.x() + one.y() * two.y() + one.z() * two.z();
+        }
+
+        @Override
+        protected Vec3f add(Vec3f one, Vec3f two) {
+            return new Vec3f(one.x() + two.x(), one.y() + two.y(), one.z() + two.z());
+        }
+
+        @Override
+        protected Vec3f mul(Vec3f one, float mult) {
+            return new Vec3f(one.x() * mult, one.y() * mult, one.z() * mult);
+        }
+    };
+
+    private record Vec3f(float x, float y, float z) {}
+
+    private final Vec3f boxMin = new Vec3f(-1, -1, -1);
+    private final Vec3f boxMax = new Vec3f(1, 1, 1);
+    private final Vec3f[] origins = new Vec3f[RAYS];
+    private final Vec3f[] directions = new Vec3f[RAYS];
+    private int index = 0;
+
+    /**
+     * Rays start outside the box and point at a random spot near it, so some hit and some miss
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(0);
+        for (int i = 0; i < RAYS; i++) {
+            Vec3f origin = new Vec3f(random.nextFloat() * 20 - 10, random.nextFloat() * 20 - 10, random.nextFloat() * 20 - 10);
+            Vec3f target = new Vec3f(random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 2);
+            origins[i] = origin;
+            directions[i] = new Vec3f(target.x() - origin.x(), target.y() - origin.y(), target.z() - origin.z());
+        }
+    }
+
+    @Benchmark
+    public Object getBoxIntersectionWithRay() {
+        int i = index;
+        index = (i + 1) & (RAYS - 1);
+        return VECTOR_UTILS.getBoxIntersectionWithRay(boxMin, boxMax, origins[i], directions[i]);
+    }
+
+}
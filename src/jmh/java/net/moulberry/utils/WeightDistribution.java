@@ -0,0 +1,51 @@
+package net.moulberry.utils;
+
+import java.util.Random;
+
+/**
+ * Weight distributions for the weighted sampling benchmarks
+ */
+public enum WeightDistribution {
+
+    /**
+     * Every element has the same weight
+     */
+    UNIFORM {
+        @Override
+        float weight(int index, Random random) {
+            return 1;
+        }
+    },
+
+    /**
+     * Weights drawn uniformly from [1, 100)
+     */
+    RANDOM {
+        @Override
+        float weight(int index, Random random) {
+            return 1 + random.nextFloat() * 99;
+        }
+    },
+
+    /**
+     * Weight proportional to 1 / rank, so a few elements hold most of the weight
+     */
+    ZIPF {
+        @Override
+        float weight(int index, Random random) {
+            return 1f / (index + 1);
+        }
+    };
+
+    abstract float weight(int index, Random random);
+
+    public float[] weights(int size, long seed) {
+        Random random = new Random(seed);
+        float[] weights = new float[size];
+        for (int i = 0; i < size; i++) {
+            weights[i] = weight(i, random);
+        }
+        return weights;
+    }
+
+}
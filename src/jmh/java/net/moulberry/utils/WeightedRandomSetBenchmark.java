@@ -0,0 +1,84 @@
+package net.moulberry.utils;
+
+import net.moulberry.utils.probability.AliasSampler;
+import net.moulberry.utils.probability.CompactWeightedRandomSet;
+import net.moulberry.utils.probability.WeightedRandomIntSet;
+import net.moulberry.utils.probability.WeightedRandomSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sampling from a static set, against a linear cumulative scan and a TreeMap ceiling lookup
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WeightedRandomSetBenchmark {
+
+    @Param({"16", "1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"UNIFORM", "RANDOM", "ZIPF"})
+    public WeightDistribution distribution;
+
+    private WeightedRandomSet<Integer> set;
+    private AliasSampler<Integer> aliasSampler;
+    private CompactWeightedRandomSet<Integer> compactSet;
+    private WeightedRandomIntSet intSet;
+    private NaiveSamplers.LinearScan linearScan;
+    private NaiveSamplers.CumulativeTreeMap treeMap;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        float[] weights = distribution.weights(size, 0);
+
+        set = new WeightedRandomSet<>();
+        compactSet = new CompactWeightedRandomSet<>(size);
+        intSet = new WeightedRandomIntSet(size);
+        linearScan = new NaiveSamplers.LinearScan(size);
+        for (int i = 0; i < size; i++) {
+            set.add(i, weights[i]);
+            compactSet.add(i, weights[i]);
+            intSet.add(i, weights[i]);
+            linearScan.add(i, weights[i]);
+        }
+
+        aliasSampler = set.toAliasSampler();
+        treeMap = new NaiveSamplers.CumulativeTreeMap(weights);
+    }
+
+    @Benchmark
+    public Integer sample() {
+        return set.sample();
+    }
+
+    @Benchmark
+    public Integer sampleAlias() {
+        return aliasSampler.sample();
+    }
+
+    @Benchmark
+    public Integer sampleCompact() {
+        return compactSet.sample();
+    }
+
+    @Benchmark
+    public int sampleInt() {
+        return intSet.sample();
+    }
+
+    @Benchmark
+    public int sampleLinearScan() {
+        return linearScan.sample();
+    }
+
+    @Benchmark
+    public int sampleTreeMap() {
+        return treeMap.sample();
+    }
+
+}
@@ -0,0 +1,102 @@
+package net.moulberry.utils;
+
+import net.moulberry.utils.probability.CompactWeightedRandomSet;
+import net.moulberry.utils.probability.WeightedRandomSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A mix of samples and pop/add pairs at a fixed size, against a linear scan with swap-remove
+ * A cumulative TreeMap isn't included since every change shifts O(n) keys
+ * Run with the gc profiler (enabled by default in the build) to compare allocation rates, e.g. of churn and churnPooled
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WeightedRandomSetChurnBenchmark {
+
+    @Param({"1024", "65536"})
+    public int size;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public WeightDistribution distribution;
+
+    /**
+     * The fraction of operations which pop an element and add it back instead of sampling
+     */
+    @Param({"0.0", "0.1", "0.5", "1.0"})
+    public float churnRatio;
+
+    /**
+     * Node pool size of the set used by {@link #churnPooled()}, the set used by {@link #churn()} has no pool
+     */
+    private static final int NODE_POOL_SIZE = 64;
+
+    private float[] weights;
+    private WeightedRandomSet<Integer> set;
+    private WeightedRandomSet<Integer> pooledSet;
+    private CompactWeightedRandomSet<Integer> compactSet;
+    private NaiveSamplers.LinearScan linearScan;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        weights = distribution.weights(size, 0);
+
+        set = new WeightedRandomSet<>();
+        pooledSet = new WeightedRandomSet<>();
+        pooledSet.setNodePoolSize(NODE_POOL_SIZE);
+        compactSet = new CompactWeightedRandomSet<>(size);
+        linearScan = new NaiveSamplers.LinearScan(size);
+        for (int i = 0; i < size; i++) {
+            set.add(i, weights[i]);
+            pooledSet.add(i, weights[i]);
+            compactSet.add(i, weights[i]);
+            linearScan.add(i, weights[i]);
+        }
+    }
+
+    @Benchmark
+    public Integer churn() {
+        return churn(set);
+    }
+
+    @Benchmark
+    public Integer churnPooled() {
+        return churn(pooledSet);
+    }
+
+    private Integer churn(WeightedRandomSet<Integer> set) {
+        if (ThreadLocalRandom.current().nextFloat() < churnRatio) {
+            Integer element = set.pop();
+            set.add(element, weights[element]);
+            return element;
+        }
+        return set.sample();
+    }
+
+    @Benchmark
+    public Integer churnCompact() {
+        if (ThreadLocalRandom.current().nextFloat() < churnRatio) {
+            Integer element = compactSet.pop();
+            compactSet.add(element, weights[element]);
+            return element;
+        }
+        return compactSet.sample();
+    }
+
+    @Benchmark
+    public int churnLinearScan() {
+        if (ThreadLocalRandom.current().nextFloat() < churnRatio) {
+            int element = linearScan.pop();
+            linearScan.add(element, weights[element]);
+            return element;
+        }
+        return linearScan.sample();
+    }
+
+}
@@ -0,0 +1,116 @@
+package net.moulberry.utils.probability;
+
+import org.intellij.lang.annotations.Flow;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Range;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Frozen snapshot of a {@link WeightedRandomSet} which samples in O(1) using Vose's alias method
+ * Changes made to the source set after the snapshot was taken are not reflected,
+ * call {@link WeightedRandomSet#toAliasSampler()} again to rebuild it in O(n)
+ */
+public final class AliasSampler<E> {
+
+    private final Object[] elements;
+    private final float[] probabilities;
+    private final int[] aliases;
+    private final float totalWeight;
+
+    AliasSampler(Object[] elements, float[] weights, float totalWeight) {
+        assert elements.length == weights.length;
+
+        final int n = elements.length;
+        this.elements = elements;
+        this.probabilities = new float[n];
+        this.aliases = new int[n];
+        this.totalWeight = totalWeight;
+
+        if (n == 0) return;
+
+        double sum = 0;
+        for (float weight : weights) sum += weight;
+
+        // Scaled so that the average column has probability 1
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / sum;
+            if (scaled[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+
+            probabilities[less] = (float) scaled[less];
+            aliases[less] = more;
+
+            scaled[more] = (scaled[more] + scaled[less]) - 1;
+            if (scaled[more] < 1) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+
+        // Anything left over is only off from 1 due to rounding
+        while (largeCount > 0) {
+            int index = large[--largeCount];
+            probabilities[index] = 1;
+            aliases[index] = index;
+        }
+        while (smallCount > 0) {
+            int index = small[--smallCount];
+            probabilities[index] = 1;
+            aliases[index] = index;
+        }
+    }
+
+    @Contract(pure = true)
+    public @Range(from = 0, to = Integer.MAX_VALUE) int size() {
+        return elements.length;
+    }
+
+    @Contract(pure = true)
+    public boolean isEmpty() {
+        return elements.length == 0;
+    }
+
+    /**
+     * @return The total weight of the source set at the time this snapshot was taken
+     */
+    @Contract(pure = true)
+    public float totalWeight() {
+        return totalWeight;
+    }
+
+    @Contract(pure = true)
+    @SuppressWarnings("unchecked")
+    public @Flow(sourceIsContainer = true) @Nullable E sample() {
+        final int n = elements.length;
+        if (n == 0) return null;
+
+        // One random value picks both the column and the side of the column
+        double value = ThreadLocalRandom.current().nextDouble() * n;
+        int index = (int) value;
+        if (index >= n) index = n - 1;
+
+        if (value - index < probabilities[index]) {
+            return (E) elements[index];
+        } else {
+            return (E) elements[aliases[index]];
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+package net.moulberry.utils.probability;
+
+import org.intellij.lang.annotations.Flow;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Range;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Alternative storage layout for {@link WeightedRandomSet} meant for very large sets
+ * Elements live in a flat array, weights in an implicit sum tree indexed by slot, and
+ * an open-addressing index maps each element to its slot, so there are no per-element node objects
+ *
+ * Sampling and popping behave the same as {@link WeightedRandomSet}, iteration is in slot order
+ */
+public class CompactWeightedRandomSet<E> extends AbstractSet<E> {
+
+    private final ImplicitSumTree weights;
+    private final ObjectSlotIndex index;
+    private Object[] elements;
+    private int size = 0;
+    private int modCount = 0;
+
+    public CompactWeightedRandomSet() {
+        this(16);
+    }
+
+    public CompactWeightedRandomSet(@Range(from = 0, to = Integer.MAX_VALUE) int expectedSize) {
+        this.weights = new ImplicitSumTree(expectedSize);
+        this.index = new ObjectSlotIndex(expectedSize);
+        this.elements = new Object[weights.capacity()];
+    }
+
+    @Contract(pure = true)
+    public float totalWeight() {
+        if (size == 0) return 0;
+        return (float) weights.total();
+    }
+
+    /**
+     * @return The weight of `element`, or 0 if it isn't in the set
+     */
+    @Contract(pure = true)
+    public float getWeight(@NotNull Object element) {
+        int slot = index.get(element);
+        if (slot < 0) return 0;
+        return (float) weights.get(slot);
+    }
+
+    @Contract(pure = true)
+    public @Flow(sourceIsContainer = true) @Nullable E sample() {
+        if (size == 0) return null;
+        return elementAt(weights.find(ThreadLocalRandom.current().nextDouble(weights.total())));
+    }
+
+    @Contract(mutates = "this")
+    public @Flow(sourceIsContainer = true) @Nullable E pop() {
+        if (size == 0) return null;
+
+        int slot = weights.find(ThreadLocalRandom.current().nextDouble(weights.total()));
+        E element = elementAt(slot);
+
+        index.remove(element);
+        removeSlot(slot);
+        return element;
+    }
+
+    @Contract(mutates = "this")
+    public boolean add(@Flow(targetIsContainer = true) @NotNull E e, float weight) {
+        Objects.requireNonNull(e);
+
+        assert weight > 0;
+        if (index.get(e) >= 0) return false; // Already have element
+
+        if (size == weights.capacity()) {
+            weights.ensureCapacity(size + 1);
+            elements = Arrays.copyOf(elements, weights.capacity());
+        }
+
+        int slot = size++;
+        elements[slot] = e;
+        weights.set(slot, weight);
+        index.put(e, slot);
+
+        modCount++;
+        return true;
+    }
+
+    // region [Set Method Implementations]
+
+    @Override
+    @Contract(pure = true)
+    public @Range(from = 0, to = Integer.MAX_VALUE) int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    @Contract(pure = true)
+    public boolean contains(@NotNull Object element) {
+        return index.get(element) >= 0;
+    }
+
+    @Override
+    public boolean add(E e) {
+        return add(e, 1);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int slot = index.remove(o);
+        if (slot < 0) return false;
+
+        removeSlot(slot);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(elements, 0, size, null);
+        weights.clear();
+        index.clear();
+        size = 0;
+        modCount++;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<>() {
+            private int cursor = 0;
+            private int lastReturned = -1;
+            private int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < size;
+            }
+
+            @Override
+            public E next() {
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                if (cursor >= size) throw new NoSuchElementException();
+                lastReturned = cursor++;
+                return elementAt(lastReturned);
+            }
+
+            @Override
+            public void remove() {
+                if (lastReturned < 0) throw new IllegalStateException();
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+
+                index.remove(elements[lastReturned]);
+                removeSlot(lastReturned);
+
+                // The last element was swapped into the removed slot, so it still needs to be visited
+                cursor = lastReturned;
+                lastReturned = -1;
+                expectedModCount = modCount;
+            }
+        };
+    }
+
+    // endregion
+
+    // region [Internal Implementation]
+
+    @SuppressWarnings("unchecked")
+    private E elementAt(int slot) {
+        return (E) elements[slot];
+    }
+
+    /**
+     * Removes the element in `slot` by moving the last element into it
+     * The caller is responsible for removing the element from the index
+     */
+    private void removeSlot(int slot) {
+        int last = --size;
+
+        if (slot != last) {
+            Object moved = elements[last];
+            elements[slot] = moved;
+            weights.set(slot, weights.get(last));
+            index.put(moved, slot);
+        }
+
+        elements[last] = null;
+        weights.set(last, 0);
+        modCount++;
+    }
+
+    // endregion
+
+}
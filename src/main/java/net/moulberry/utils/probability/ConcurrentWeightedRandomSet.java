@@ -0,0 +1,287 @@
+package net.moulberry.utils.probability;
+
+import org.intellij.lang.annotations.Flow;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Range;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Thread-safe weighted random set where reads never block
+ *
+ * Weights are kept in a persistent (immutable, path-copied) binary sum tree indexed by slot.
+ * Writers are serialized by a lock and publish a new root with a single volatile write,
+ * copying only the O(log n) nodes on the path to the changed slot.
+ * Readers ({@link #sample()}, {@link #size()}, iteration) work on whichever root they read and never wait for writers.
+ *
+ * Iterators are snapshots of the set at the time they were created and never throw {@link ConcurrentModificationException}
+ */
+public class ConcurrentWeightedRandomSet<E> extends AbstractSet<E> {
+
+    // region [Node Class Definitions]
+
+    private static abstract class Node<E> {
+        final double weight;
+
+        Node(double weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static final class LeafNode<E> extends Node<E> {
+        final @NotNull E element;
+
+        LeafNode(@NotNull E element, double weight) {
+            super(weight);
+            this.element = element;
+        }
+    }
+
+    private static final class InternalNode<E> extends Node<E> {
+        final @Nullable Node<E> left;
+        final @Nullable Node<E> right;
+
+        InternalNode(@Nullable Node<E> left, @Nullable Node<E> right) {
+            super(weightOf(left) + weightOf(right));
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * @param height Number of internal levels, slots are in the range [0, 1 << height)
+     */
+    private record Snapshot<E>(@Nullable Node<E> root, int height, int size) {}
+
+    // endregion
+
+    private final Object writeLock = new Object();
+    private final ConcurrentHashMap<E, Integer> slots = new ConcurrentHashMap<>();
+    private volatile Snapshot<E> snapshot = new Snapshot<>(null, 0, 0);
+
+    @Contract(pure = true)
+    public float totalWeight() {
+        return (float) weightOf(snapshot.root);
+    }
+
+    @Contract(pure = true)
+    public @Flow(sourceIsContainer = true) @Nullable E sample() {
+        LeafNode<E> leaf = get(snapshot.root);
+        return leaf == null ? null : leaf.element;
+    }
+
+    @Contract(mutates = "this")
+    public @Flow(sourceIsContainer = true) @Nullable E pop() {
+        synchronized (writeLock) {
+            LeafNode<E> leaf = get(snapshot.root);
+            if (leaf == null) return null;
+
+            removeElement(leaf.element);
+            return leaf.element;
+        }
+    }
+
+    @Contract(mutates = "this")
+    public boolean add(@Flow(targetIsContainer = true) @NotNull E e, float weight) {
+        Objects.requireNonNull(e);
+
+        assert weight > 0;
+        synchronized (writeLock) {
+            if (slots.containsKey(e)) return false; // Already have element
+
+            Snapshot<E> current = this.snapshot;
+            Node<E> root = current.root;
+            int height = current.height;
+            int slot = current.size;
+
+            // Grow by making the existing tree the left half of a tree twice the size
+            if (root != null && slot >= (1 << height)) {
+                root = new InternalNode<>(root, null);
+                height++;
+            }
+
+            root = set(root, height, slot, new LeafNode<>(e, weight));
+
+            this.snapshot = new Snapshot<>(root, height, slot + 1);
+            slots.put(e, slot);
+            return true;
+        }
+    }
+
+    // region [Set Method Implementations]
+
+    @Override
+    @Contract(pure = true)
+    public @Range(from = 0, to = Integer.MAX_VALUE) int size() {
+        return snapshot.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return snapshot.size == 0;
+    }
+
+    @Override
+    @Contract(pure = true)
+    public boolean contains(@NotNull Object element) {
+        return slots.containsKey(element);
+    }
+
+    @Override
+    public boolean add(E e) {
+        return add(e, 1);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        Objects.requireNonNull(o);
+
+        synchronized (writeLock) {
+            return removeElement(o);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (writeLock) {
+            this.snapshot = new Snapshot<>(null, 0, 0);
+            slots.clear();
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<E> iterator() {
+        final Snapshot<E> snapshot = this.snapshot;
+
+        return new Iterator<>() {
+            private final ArrayDeque<Node<E>> stack = new ArrayDeque<>();
+            private @Nullable E lastReturned = null;
+
+            {
+                if (snapshot.root != null) stack.push(snapshot.root);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public E next() {
+                while (true) {
+                    Node<E> node = stack.poll();
+                    if (node == null) throw new NoSuchElementException();
+
+                    if (node instanceof InternalNode<E> internal) {
+                        if (internal.right != null) stack.push(internal.right);
+                        if (internal.left != null) stack.push(internal.left);
+                    } else {
+                        lastReturned = ((LeafNode<E>) node).element;
+                        return lastReturned;
+                    }
+                }
+            }
+
+            @Override
+            public void remove() {
+                if (lastReturned == null) throw new IllegalStateException();
+                ConcurrentWeightedRandomSet.this.remove(lastReturned);
+                lastReturned = null;
+            }
+        };
+    }
+
+    // endregion
+
+    // region [Internal Implementation]
+
+    /**
+     * Must be called while holding `writeLock`
+     */
+    private boolean removeElement(Object element) {
+        Integer slot = slots.get(element);
+        if (slot == null) return false;
+
+        Snapshot<E> current = this.snapshot;
+        Node<E> root = current.root;
+        int height = current.height;
+        int last = current.size - 1;
+
+        // Keep slots dense by moving the last leaf into the hole, published together with the removal
+        if (slot != last) {
+            LeafNode<E> lastLeaf = leafAt(root, height, last);
+            root = set(root, height, slot, lastLeaf);
+            slots.put(lastLeaf.element, slot);
+        }
+        root = set(root, height, last, null);
+
+        if (root == null) height = 0;
+        while (height > 0 && root instanceof InternalNode<E> internal && internal.right == null) {
+            root = internal.left;
+            height--;
+        }
+
+        this.snapshot = new Snapshot<>(root, height, last);
+        slots.remove(element);
+        return true;
+    }
+
+    private static <E> @Nullable LeafNode<E> get(@Nullable Node<E> root) {
+        if (root == null) return null;
+
+        double value = ThreadLocalRandom.current().nextDouble(root.weight);
+        Node<E> node = root;
+
+        while (node instanceof InternalNode<E> internal) {
+            double leftWeight = weightOf(internal.left);
+            if (internal.right == null || (internal.left != null && value < leftWeight)) {
+                node = internal.left;
+            } else {
+                value -= leftWeight;
+                node = internal.right;
+            }
+        }
+
+        return (LeafNode<E>) node;
+    }
+
+    private static <E> LeafNode<E> leafAt(Node<E> node, int height, int slot) {
+        for (int level = height - 1; level >= 0; level--) {
+            InternalNode<E> internal = (InternalNode<E>) node;
+            node = ((slot >>> level) & 1) == 0 ? internal.left : internal.right;
+        }
+        return (LeafNode<E>) node;
+    }
+
+    /**
+     * @return A copy of `node` with `slot` replaced by `leaf`, sharing every subtree off the path
+     */
+    private static <E> @Nullable Node<E> set(@Nullable Node<E> node, int height, int slot, @Nullable LeafNode<E> leaf) {
+        if (height == 0) return leaf;
+
+        InternalNode<E> internal = (InternalNode<E>) node;
+        Node<E> left = internal == null ? null : internal.left;
+        Node<E> right = internal == null ? null : internal.right;
+
+        if (((slot >>> (height - 1)) & 1) == 0) {
+            left = set(left, height - 1, slot, leaf);
+        } else {
+            right = set(right, height - 1, slot, leaf);
+        }
+
+        if (left == null && right == null) return null;
+        return new InternalNode<>(left, right);
+    }
+
+    private static double weightOf(@Nullable Node<?> node) {
+        return node == null ? 0 : node.weight;
+    }
+
+    // endregion
+
+}
@@ -0,0 +1,90 @@
+package net.moulberry.utils.probability;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Range;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes elements for {@link WeightedRandomSet#writeTo(ByteBuffer, ElementCodec)}
+ * An element must decode from exactly the bytes it encoded to, starting at the buffer's position
+ */
+public interface ElementCodec<E> {
+
+    ElementCodec<Integer> INTEGER = new ElementCodec<>() {
+        @Override
+        public int encodedSize(@NotNull Integer element) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void encode(@NotNull Integer element, @NotNull ByteBuffer buffer) {
+            buffer.putInt(element);
+        }
+
+        @Override
+        public @NotNull Integer decode(@NotNull ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    };
+
+    ElementCodec<Long> LONG = new ElementCodec<>() {
+        @Override
+        public int encodedSize(@NotNull Long element) {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void encode(@NotNull Long element, @NotNull ByteBuffer buffer) {
+            buffer.putLong(element);
+        }
+
+        @Override
+        public @NotNull Long decode(@NotNull ByteBuffer buffer) {
+            return buffer.getLong();
+        }
+    };
+
+    /**
+     * Length-prefixed UTF-8
+     */
+    ElementCodec<String> STRING = new ElementCodec<>() {
+        @Override
+        public int encodedSize(@NotNull String element) {
+            return Integer.BYTES + element.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        @Override
+        public void encode(@NotNull String element, @NotNull ByteBuffer buffer) {
+            byte[] bytes = element.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+
+        @Override
+        public @NotNull String decode(@NotNull ByteBuffer buffer) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException("Invalid string length: " + length);
+            }
+
+            // Mapped buffers have no backing array
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * @return The number of bytes {@link #encode(Object, ByteBuffer)} will write for `element`
+     */
+    @Contract(pure = true)
+    @Range(from = 0, to = Integer.MAX_VALUE) int encodedSize(@NotNull E element);
+
+    void encode(@NotNull E element, @NotNull ByteBuffer buffer);
+
+    @NotNull E decode(@NotNull ByteBuffer buffer);
+
+}
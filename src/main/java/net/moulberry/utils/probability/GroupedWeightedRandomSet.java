@@ -0,0 +1,209 @@
+package net.moulberry.utils.probability;
+
+import org.intellij.lang.annotations.Flow;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Range;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * Two-level weighted set: elements belong to groups, and each group is a {@link WeightedRandomSet} whose weight
+ * in the outer set is always its {@link WeightedRandomSet#totalWeight()}
+ * The group sets are live, so any change made to one directly is reflected in the group weights,
+ * which are brought up to date lazily before the next sample
+ *
+ * Sampling picks a group by weight and then an element inside it, so every element is sampled with probability
+ * proportional to its own weight across all groups, in O(log groups + log elements)
+ * That is two separate tree descents per sample, so a single {@link WeightedRandomSet} is faster when groups aren't needed
+ *
+ * Group weights are copied into the outer set as floats, so each group's share is only as exact as its
+ * {@link WeightedRandomSet#totalWeight()} rounded to a float. Totals that round to 0 or overflow are clamped
+ * to the smallest positive or largest finite float
+ */
+public class GroupedWeightedRandomSet<G, E> {
+
+    private final WeightedRandomSet<G> groupWeights = new WeightedRandomSet<>();
+    private final HashMap<G, WeightedRandomSet<E>> groups = new HashMap<>();
+    /**
+     * Groups whose weight may have changed since it was last copied into `groupWeights`
+     */
+    private final LinkedHashSet<G> dirtyGroups = new LinkedHashSet<>();
+
+    /**
+     * @return The set of elements in `group`, created empty if it doesn't exist yet
+     */
+    @Contract(mutates = "this")
+    public @NotNull WeightedRandomSet<E> group(@NotNull G group) {
+        Objects.requireNonNull(group);
+
+        WeightedRandomSet<E> set = groups.get(group);
+        if (set == null) {
+            set = new WeightedRandomSet<>();
+            attach(group, set);
+        }
+        return set;
+    }
+
+    /**
+     * @return The set of elements in `group`, or null if it doesn't exist
+     */
+    @Contract(pure = true)
+    public @Nullable WeightedRandomSet<E> getGroup(@NotNull Object group) {
+        return groups.get(group);
+    }
+
+    /**
+     * Adopts an existing set as `group`, replacing any previous set for that group
+     *
+     * @throws IllegalStateException If `set` already belongs to a group
+     */
+    @Contract(mutates = "this")
+    public void putGroup(@NotNull G group, @NotNull WeightedRandomSet<E> set) {
+        Objects.requireNonNull(group);
+        if (set.weightListener != null) throw new IllegalStateException("Set already belongs to a group");
+
+        removeGroup(group);
+        attach(group, set);
+    }
+
+    /**
+     * Removes `group` along with its elements. The removed set stays usable on its own
+     */
+    @Contract(mutates = "this")
+    public @Nullable WeightedRandomSet<E> removeGroup(@NotNull Object group) {
+        WeightedRandomSet<E> set = groups.remove(group);
+        if (set == null) return null;
+
+        set.weightListener = null;
+        dirtyGroups.remove(group);
+        groupWeights.remove(group);
+        return set;
+    }
+
+    /**
+     * Adds `element` to `group`, creating the group if needed
+     */
+    @Contract(mutates = "this")
+    public boolean add(@NotNull G group, @NotNull E element, float weight) {
+        return group(group).add(element, weight);
+    }
+
+    /**
+     * Removes `element` from `group`, the group is kept even if it becomes empty
+     */
+    @Contract(mutates = "this")
+    public boolean remove(@NotNull Object group, @NotNull Object element) {
+        WeightedRandomSet<E> set = groups.get(group);
+        return set != null && set.remove(element);
+    }
+
+    @Contract(pure = true)
+    public @NotNull Set<G> groups() {
+        return Collections.unmodifiableSet(groups.keySet());
+    }
+
+    /**
+     * @return The number of elements across every group, O(groups)
+     */
+    @Contract(pure = true)
+    public @Range(from = 0, to = Integer.MAX_VALUE) int size() {
+        int size = 0;
+        for (WeightedRandomSet<E> set : groups.values()) {
+            size += set.size();
+        }
+        return size;
+    }
+
+    @Contract(mutates = "this")
+    public boolean isEmpty() {
+        flush();
+        return groupWeights.isEmpty();
+    }
+
+    @Contract(mutates = "this")
+    public float totalWeight() {
+        flush();
+        return groupWeights.totalWeight();
+    }
+
+    /**
+     * @return The total weight of `group`, or 0 if it doesn't exist
+     */
+    @Contract(pure = true)
+    public float groupWeight(@NotNull Object group) {
+        WeightedRandomSet<E> set = groups.get(group);
+        return set == null ? 0 : set.totalWeight();
+    }
+
+    /**
+     * Samples an element across every group, with probability proportional to its weight
+     */
+    @Contract(mutates = "this")
+    public @Flow(sourceIsContainer = true) @Nullable E sample() {
+        return sample(ThreadLocalRandom.current());
+    }
+
+    @Contract(mutates = "this")
+    public @Flow(sourceIsContainer = true) @Nullable E sample(@NotNull RandomGenerator random) {
+        G group = sampleGroup(random);
+        if (group == null) return null;
+        return groups.get(group).sample(random);
+    }
+
+    /**
+     * Samples a group, with probability proportional to its total weight
+     */
+    @Contract(mutates = "this")
+    public @Flow(sourceIsContainer = true) @Nullable G sampleGroup() {
+        return sampleGroup(ThreadLocalRandom.current());
+    }
+
+    @Contract(mutates = "this")
+    public @Flow(sourceIsContainer = true) @Nullable G sampleGroup(@NotNull RandomGenerator random) {
+        flush();
+        return groupWeights.sample(random);
+    }
+
+    /**
+     * Samples and removes an element across every group, the group is kept even if it becomes empty
+     */
+    @Contract(mutates = "this")
+    public @Flow(sourceIsContainer = true) @Nullable E pop() {
+        G group = sampleGroup();
+        if (group == null) return null;
+        return groups.get(group).pop();
+    }
+
+    private void attach(G group, WeightedRandomSet<E> set) {
+        set.weightListener = () -> dirtyGroups.add(group);
+        groups.put(group, set);
+        dirtyGroups.add(group);
+    }
+
+    /**
+     * Copies the weight of every group that may have changed into `groupWeights`, so every read that depends on
+     * the group weights mutates this set
+     * Empty groups are left out of `groupWeights`, since it can't hold a weight of 0
+     */
+    private void flush() {
+        if (dirtyGroups.isEmpty()) return;
+
+        for (G group : dirtyGroups) {
+            WeightedRandomSet<E> set = groups.get(group);
+            if (!set.isEmpty()) {
+                float weight = Math.min(Math.max(set.totalWeight(), Float.MIN_VALUE), Float.MAX_VALUE);
+                if (!groupWeights.setWeight(group, weight)) {
+                    groupWeights.add(group, weight);
+                }
+            } else {
+                groupWeights.remove(group);
+            }
+        }
+        dirtyGroups.clear();
+    }
+
+}
@@ -0,0 +1,159 @@
+package net.moulberry.utils.probability;
+
+import org.intellij.lang.annotations.Flow;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Range;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * Frozen copy of a {@link WeightedRandomSet}, created by {@link WeightedRandomSet#freeze()}
+ * Elements, weights and cumulative weights are stored in parallel arrays in Eytzinger (breadth-first) order,
+ * so sampling is a branch-free binary search whose next comparisons sit next to each other in memory
+ * An open-addressing index answers contains and getWeight without a HashMap
+ * <p>
+ * Nothing is modified after construction, so it can be shared between threads without locking
+ * Every mutating method throws {@link UnsupportedOperationException}
+ */
+public final class ImmutableWeightedRandomSet<E> extends AbstractSet<E> {
+
+    /**
+     * Index k holds the k-th node of the Eytzinger layout, index 0 is unused
+     */
+    private final Object[] elements;
+    private final float[] weights;
+    /**
+     * The cumulative weight up to and including each element, summed in the order the elements were given
+     */
+    private final double[] cumulativeWeights;
+    private final ObjectSlotIndex index;
+    private final int size;
+    private final double totalWeight;
+    /**
+     * The Eytzinger index of the element with the largest cumulative weight, which samples that round past the end land on
+     */
+    private final int lastIndex;
+
+    ImmutableWeightedRandomSet(Object[] sortedElements, float[] sortedWeights) {
+        assert sortedElements.length == sortedWeights.length;
+        this.size = sortedElements.length;
+
+        double[] sortedCumulative = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += sortedWeights[i];
+            sortedCumulative[i] = sum;
+        }
+        this.totalWeight = sum;
+
+        this.elements = new Object[size + 1];
+        this.weights = new float[size + 1];
+        this.cumulativeWeights = new double[size + 1];
+        fill(1, 0, sortedElements, sortedWeights, sortedCumulative);
+
+        this.index = new ObjectSlotIndex(size);
+        int last = 0;
+        for (int k = 1; k <= size; k++) {
+            index.put(elements[k], k);
+            if (last == 0 || cumulativeWeights[k] > cumulativeWeights[last]) last = k;
+        }
+        this.lastIndex = last;
+    }
+
+    /**
+     * Lays out the sorted arrays in Eytzinger order with an in-order traversal of the implicit tree
+     *
+     * @return The next sorted index to place
+     */
+    private int fill(int k, int sorted, Object[] sortedElements, float[] sortedWeights, double[] sortedCumulative) {
+        if (k > size) return sorted;
+
+        sorted = fill(k << 1, sorted, sortedElements, sortedWeights, sortedCumulative);
+        elements[k] = sortedElements[sorted];
+        weights[k] = sortedWeights[sorted];
+        cumulativeWeights[k] = sortedCumulative[sorted];
+        sorted++;
+        return fill((k << 1) | 1, sorted, sortedElements, sortedWeights, sortedCumulative);
+    }
+
+    @Contract(pure = true)
+    public float totalWeight() {
+        return (float) totalWeight;
+    }
+
+    /**
+     * @return The weight of `element`, or 0 if it isn't in the set
+     */
+    @Contract(pure = true)
+    public float getWeight(@NotNull Object element) {
+        int k = index.get(element);
+        if (k < 0) return 0;
+        return weights[k];
+    }
+
+    @Contract(pure = true)
+    public @Flow(sourceIsContainer = true) @Nullable E sample() {
+        return sample(ThreadLocalRandom.current());
+    }
+
+    @Contract(pure = true)
+    @SuppressWarnings("unchecked")
+    public @Flow(sourceIsContainer = true) @Nullable E sample(@NotNull RandomGenerator random) {
+        if (size == 0) return null;
+        double value = random.nextDouble(totalWeight);
+
+        // Finds the first element whose cumulative weight is greater than `value`
+        int k = 1;
+        while (k <= size) {
+            k = (k << 1) | (cumulativeWeights[k] <= value ? 1 : 0);
+        }
+        // Undo the right turns taken after the last left turn, which was at the answer
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+
+        return (E) elements[k == 0 ? lastIndex : k];
+    }
+
+    @Override
+    public @Range(from = 0, to = Integer.MAX_VALUE) int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o != null && index.get(o) >= 0;
+    }
+
+    /**
+     * Iterates in layout order
+     */
+    @Override
+    public @NotNull Iterator<E> iterator() {
+        return new Iterator<>() {
+            private int k = 1;
+
+            @Override
+            public boolean hasNext() {
+                return k <= size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (k > size) throw new NoSuchElementException();
+                return (E) elements[k++];
+            }
+        };
+    }
+
+}
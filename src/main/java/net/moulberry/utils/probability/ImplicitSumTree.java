@@ -0,0 +1,89 @@
+package net.moulberry.utils.probability;
+
+import java.util.Arrays;
+
+/**
+ * Array-backed binary sum tree over a fixed number of slots
+ * Node 1 is the root, the children of node i are 2i and 2i+1 and slot s is stored in node capacity+s
+ * Every internal node is recomputed from its children, so sums never drift
+ */
+final class ImplicitSumTree {
+
+    private double[] tree;
+    private int capacity;
+
+    ImplicitSumTree(int initialCapacity) {
+        this.capacity = capacityFor(initialCapacity);
+        this.tree = new double[this.capacity * 2];
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    double total() {
+        return tree[1];
+    }
+
+    double get(int slot) {
+        return tree[capacity + slot];
+    }
+
+    void set(int slot, double weight) {
+        int index = capacity + slot;
+        tree[index] = weight;
+
+        index >>>= 1;
+        while (index > 0) {
+            tree[index] = tree[index << 1] + tree[(index << 1) | 1];
+            index >>>= 1;
+        }
+    }
+
+    /**
+     * @param value A value in the range [0, total)
+     * @return The slot whose cumulative weight range contains `value`
+     */
+    int find(double value) {
+        int index = 1;
+        while (index < capacity) {
+            int left = index << 1;
+            double leftWeight = tree[left];
+            // Never descend into an empty subtree, even if rounding pushes the value past the end
+            if (value < leftWeight || tree[left | 1] <= 0) {
+                index = left;
+            } else {
+                value -= leftWeight;
+                index = left | 1;
+            }
+        }
+        return index - capacity;
+    }
+
+    void ensureCapacity(int minCapacity) {
+        if (minCapacity <= capacity) return;
+
+        int newCapacity = capacityFor(minCapacity);
+        double[] newTree = new double[newCapacity * 2];
+        System.arraycopy(tree, capacity, newTree, newCapacity, capacity);
+
+        for (int index = newCapacity - 1; index > 0; index--) {
+            newTree[index] = newTree[index << 1] + newTree[(index << 1) | 1];
+        }
+
+        this.tree = newTree;
+        this.capacity = newCapacity;
+    }
+
+    void clear() {
+        Arrays.fill(tree, 0);
+    }
+
+    private static int capacityFor(int size) {
+        if (size <= 1) return 1;
+        int capacity = Integer.highestOneBit(size - 1) << 1;
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity too large: " + size);
+        return capacity;
+    }
+
+}
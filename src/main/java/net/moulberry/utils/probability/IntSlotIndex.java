@@ -0,0 +1,122 @@
+package net.moulberry.utils.probability;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) map from int keys to non-negative slot numbers
+ * Slots are stored offset by one so that an empty table entry can be represented by 0
+ */
+final class IntSlotIndex {
+
+    private int[] keys;
+    private int[] slots;
+    private int mask;
+    private int size = 0;
+
+    IntSlotIndex(int expectedSize) {
+        int capacity = tableSizeFor(expectedSize);
+        this.keys = new int[capacity];
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The slot for `key`, or -1 if it isn't present
+     */
+    int get(int key) {
+        int index = hash(key) & mask;
+        int slot;
+        while ((slot = slots[index]) != 0) {
+            if (keys[index] == key) return slot - 1;
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    void put(int key, int slot) {
+        int index = hash(key) & mask;
+        while (slots[index] != 0) {
+            if (keys[index] == key) {
+                slots[index] = slot + 1;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        slots[index] = slot + 1;
+        if (++size * 2 > keys.length) rehash(keys.length * 2);
+    }
+
+    /**
+     * @return The slot that was mapped to `key`, or -1 if it wasn't present
+     */
+    int remove(int key) {
+        int index = hash(key) & mask;
+        int slot;
+        while ((slot = slots[index]) != 0) {
+            if (keys[index] == key) {
+                shiftBack(index);
+                size--;
+                return slot - 1;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    private void shiftBack(int hole) {
+        int index = hole;
+        while (true) {
+            index = (index + 1) & mask;
+            if (slots[index] == 0) break;
+
+            // Only move entries whose probe sequence passes through the hole
+            int ideal = hash(keys[index]) & mask;
+            if (((index - ideal) & mask) >= ((index - hole) & mask)) {
+                keys[hole] = keys[index];
+                slots[hole] = slots[index];
+                hole = index;
+            }
+        }
+        slots[hole] = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldSlots = slots;
+
+        this.keys = new int[capacity];
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] == 0) continue;
+
+            int index = hash(oldKeys[i]) & mask;
+            while (slots[index] != 0) index = (index + 1) & mask;
+            keys[index] = oldKeys[i];
+            slots[index] = oldSlots[i];
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+        return Math.max(capacity, 8);
+    }
+
+}
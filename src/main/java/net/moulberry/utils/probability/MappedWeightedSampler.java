@@ -0,0 +1,266 @@
+package net.moulberry.utils.probability;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Range;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Weighted sampler over dense long ids in [0, capacity), stored off-heap in a memory-mapped file
+ * The file holds the same implicit sum tree as {@link ImplicitSumTree}: node 1 is the root, the children of node i are 2i and 2i+1
+ * and id s is stored in node capacity+s, each as a little-endian double, so the heap footprint doesn't depend on the capacity
+ * Node 0 holds a magic number identifying the file
+ * An id with weight 0 is absent
+ * <p>
+ * Not thread-safe, and the file stays mapped until its buffers are garbage collected, even after {@link #close()}
+ */
+public final class MappedWeightedSampler implements Closeable {
+
+    private static final long MAGIC = 0x3130534D45505257L; // "WRPEMS01"
+
+    /**
+     * A single MappedByteBuffer can't exceed 2GiB, so the file is mapped in chunks of 2^27 doubles (1GiB)
+     */
+    private static final int DEFAULT_CHUNK_SHIFT = 27;
+
+    private final Path path;
+    private final long capacity;
+    private final int chunkShift;
+    private final long chunkMask;
+    private MappedByteBuffer[] chunks;
+
+    private MappedWeightedSampler(Path path, long capacity, int chunkShift) throws IOException {
+        this.path = path;
+        this.capacity = capacity;
+        this.chunkShift = chunkShift;
+        this.chunkMask = (1L << chunkShift) - 1;
+
+        long nodes = capacity * 2;
+        int chunkCount = chunkCount(capacity, chunkShift);
+        this.chunks = new MappedByteBuffer[chunkCount];
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                long first = (long) chunk << chunkShift;
+                long length = Math.min(1L << chunkShift, nodes - first) * Double.BYTES;
+
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, first * Double.BYTES, length);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                chunks[chunk] = buffer;
+            }
+        }
+    }
+
+    /**
+     * Creates a sampler backed by a new file at `path`, replacing any existing file, with every id absent
+     * The file is 16 bytes per id of capacity; on most filesystems it stays sparse until weights are set
+     *
+     * @param capacity The number of ids, rounded up to a power of two
+     */
+    public static MappedWeightedSampler create(@NotNull Path path, @Range(from = 1, to = Long.MAX_VALUE) long capacity) throws IOException {
+        return create(path, capacity, DEFAULT_CHUNK_SHIFT);
+    }
+
+    static MappedWeightedSampler create(@NotNull Path path, long capacity, int chunkShift) throws IOException {
+        Objects.requireNonNull(path);
+        long roundedCapacity = capacityFor(capacity);
+        chunkCount(roundedCapacity, chunkShift); // Fails before the file is created
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Writing the last byte extends the file without writing the zeroes in between
+            channel.write(ByteBuffer.allocate(1), roundedCapacity * 2 * Double.BYTES - 1);
+        }
+
+        MappedWeightedSampler sampler = new MappedWeightedSampler(path, roundedCapacity, chunkShift);
+        sampler.chunks[0].putLong(0, MAGIC);
+        return sampler;
+    }
+
+    /**
+     * Opens a file created by {@link #create(Path, long)}, without reading the weights up front
+     *
+     * @throws IOException If `path` isn't a sampler file
+     */
+    public static MappedWeightedSampler open(@NotNull Path path) throws IOException {
+        return open(path, DEFAULT_CHUNK_SHIFT);
+    }
+
+    static MappedWeightedSampler open(@NotNull Path path, int chunkShift) throws IOException {
+        Objects.requireNonNull(path);
+
+        long size;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            size = channel.size();
+        }
+
+        long capacity = size / (2 * Double.BYTES);
+        if (capacity <= 0 || size != capacity * 2 * Double.BYTES || Long.bitCount(capacity) != 1) {
+            throw new IOException("Not a sampler file: " + path);
+        }
+
+        MappedWeightedSampler sampler = new MappedWeightedSampler(path, capacity, chunkShift);
+        if (sampler.chunks[0].getLong(0) != MAGIC) {
+            throw new IOException("Not a sampler file: " + path);
+        }
+        return sampler;
+    }
+
+    @Contract(pure = true)
+    public @NotNull Path path() {
+        return path;
+    }
+
+    /**
+     * @return The number of ids, valid ids are in [0, capacity)
+     */
+    @Contract(pure = true)
+    public @Range(from = 1, to = Long.MAX_VALUE) long capacity() {
+        return capacity;
+    }
+
+    @Contract(pure = true)
+    public double totalWeight() {
+        return get(1);
+    }
+
+    /**
+     * @return true if every id has weight 0
+     */
+    @Contract(pure = true)
+    public boolean isEmpty() {
+        return !(totalWeight() > 0);
+    }
+
+    /**
+     * @return The weight of `id`, or 0 if it is absent
+     */
+    @Contract(pure = true)
+    public double getWeight(@Range(from = 0, to = Long.MAX_VALUE) long id) {
+        Objects.checkIndex(id, capacity);
+        return get(capacity + id);
+    }
+
+    /**
+     * Sets the weight of `id` in place in O(log capacity), a weight of 0 removes it
+     */
+    @Contract(mutates = "this")
+    public void setWeight(@Range(from = 0, to = Long.MAX_VALUE) long id, double weight) {
+        Objects.checkIndex(id, capacity);
+        if (!(weight >= 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("Invalid weight: " + weight);
+        }
+
+        long node = capacity + id;
+        put(node, weight);
+
+        // Recomputed from the children rather than adjusted by a delta, so sums never drift
+        node >>>= 1;
+        while (node > 0) {
+            put(node, get(node << 1) + get((node << 1) | 1));
+            node >>>= 1;
+        }
+    }
+
+    /**
+     * Adds `delta` to the weight of `id`, clamping at 0
+     */
+    @Contract(mutates = "this")
+    public void addWeight(@Range(from = 0, to = Long.MAX_VALUE) long id, double delta) {
+        setWeight(id, Math.max(0, getWeight(id) + delta));
+    }
+
+    /**
+     * Samples an id in O(log capacity), with probability proportional to its weight
+     *
+     * @throws NoSuchElementException If every id has weight 0
+     */
+    @Contract(pure = true)
+    public long sample() {
+        double total = totalWeight();
+        if (!(total > 0)) throw new NoSuchElementException();
+
+        double value = ThreadLocalRandom.current().nextDouble(total);
+        long node = 1;
+        while (node < capacity) {
+            long left = node << 1;
+            double leftWeight = get(left);
+            // Never descend into an empty subtree, even if rounding pushes the value past the end
+            if (value < leftWeight || get(left | 1) <= 0) {
+                node = left;
+            } else {
+                value -= leftWeight;
+                node = left | 1;
+            }
+        }
+        return node - capacity;
+    }
+
+    /**
+     * Flushes changed weights to the file
+     */
+    public void force() {
+        ensureOpen();
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    /**
+     * Flushes changed weights and drops this sampler's references to the mapping, after which every other method throws
+     * Java has no supported way to unmap a MappedByteBuffer, so the file stays mapped until the buffers are garbage collected,
+     * and on Windows it can't be deleted or truncated before then
+     */
+    @Override
+    public void close() {
+        if (chunks == null) return;
+        force();
+        chunks = null;
+    }
+
+    private double get(long node) {
+        ensureOpen();
+        return chunks[(int) (node >>> chunkShift)].getDouble((int) (node & chunkMask) * Double.BYTES);
+    }
+
+    private void put(long node, double value) {
+        ensureOpen();
+        chunks[(int) (node >>> chunkShift)].putDouble((int) (node & chunkMask) * Double.BYTES, value);
+    }
+
+    private void ensureOpen() {
+        if (chunks == null) throw new IllegalStateException("Sampler is closed");
+    }
+
+    private static long capacityFor(long size) {
+        if (size <= 1) return 1;
+        long capacity = Long.highestOneBit(size - 1) << 1;
+        if (capacity <= 0 || capacity > Long.MAX_VALUE / (4 * Double.BYTES)) {
+            throw new IllegalArgumentException("Capacity too large: " + size);
+        }
+        return capacity;
+    }
+
+    /**
+     * @throws IllegalArgumentException If `capacity` needs more chunks than an array can hold
+     */
+    private static int chunkCount(long capacity, int chunkShift) {
+        long chunkCount = (capacity * 2 + (1L << chunkShift) - 1) >>> chunkShift;
+        if (chunkCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Capacity too large: " + capacity);
+        }
+        return (int) chunkCount;
+    }
+
+}
@@ -0,0 +1,125 @@
+package net.moulberry.utils.probability;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) map from non-null keys to non-negative slot numbers
+ */
+final class ObjectSlotIndex {
+
+    private Object[] keys;
+    private int[] slots;
+    private int mask;
+    private int size = 0;
+
+    ObjectSlotIndex(int expectedSize) {
+        int capacity = tableSizeFor(expectedSize);
+        this.keys = new Object[capacity];
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The slot for `key`, or -1 if it isn't present
+     */
+    int get(Object key) {
+        int index = hash(key) & mask;
+        Object current;
+        while ((current = keys[index]) != null) {
+            if (current.equals(key)) return slots[index];
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    void put(Object key, int slot) {
+        int index = hash(key) & mask;
+        Object current;
+        while ((current = keys[index]) != null) {
+            if (current.equals(key)) {
+                slots[index] = slot;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        slots[index] = slot;
+        if (++size * 2 > keys.length) rehash(keys.length * 2);
+    }
+
+    /**
+     * @return The slot that was mapped to `key`, or -1 if it wasn't present
+     */
+    int remove(Object key) {
+        int index = hash(key) & mask;
+        Object current;
+        while ((current = keys[index]) != null) {
+            if (current.equals(key)) {
+                int slot = slots[index];
+                shiftBack(index);
+                size--;
+                return slot;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    private void shiftBack(int hole) {
+        int index = hole;
+        while (true) {
+            index = (index + 1) & mask;
+            Object key = keys[index];
+            if (key == null) break;
+
+            // Only move entries whose probe sequence passes through the hole
+            int ideal = hash(key) & mask;
+            if (((index - ideal) & mask) >= ((index - hole) & mask)) {
+                keys[hole] = key;
+                slots[hole] = slots[index];
+                hole = index;
+            }
+        }
+        keys[hole] = null;
+    }
+
+    private void rehash(int capacity) {
+        Object[] oldKeys = keys;
+        int[] oldSlots = slots;
+
+        this.keys = new Object[capacity];
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object key = oldKeys[i];
+            if (key == null) continue;
+
+            int index = hash(key) & mask;
+            while (keys[index] != null) index = (index + 1) & mask;
+            keys[index] = key;
+            slots[index] = oldSlots[i];
+        }
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+        return Math.max(capacity, 8);
+    }
+
+}
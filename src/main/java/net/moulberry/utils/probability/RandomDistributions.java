@@ -0,0 +1,84 @@
+package net.moulberry.utils.probability;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * Exact samplers for the distributions needed by the weighted collections
+ */
+final class RandomDistributions {
+
+    /**
+     * Below this many trials a binomial is sampled by counting Bernoulli trials directly
+     */
+    private static final long DIRECT_BINOMIAL_THRESHOLD = 32;
+
+    private RandomDistributions() {}
+
+    /**
+     * Samples the number of successes in `n` independent trials which each succeed with probability `p`
+     * Uses Knuth's order-statistic splitting, so the cost is O(log n) rather than O(n)
+     */
+    static long binomial(RandomGenerator random, long n, double p) {
+        if (p <= 0 || n <= 0) return 0;
+        if (p >= 1) return n;
+
+        long successes = 0;
+        while (n > DIRECT_BINOMIAL_THRESHOLD) {
+            // `order` is the rank of the median order statistic of n uniforms, which is Beta(order, n + 1 - order)
+            long order = 1 + n / 2;
+            double x = beta(random, order, n + 1 - order);
+
+            if (x >= p) {
+                // Successes are among the order-1 smaller uniforms, which are uniform on [0, x)
+                n = order - 1;
+                p = p / x;
+            } else {
+                // The smallest `order` uniforms are all successes, the rest are uniform on (x, 1)
+                successes += order;
+                n = n - order;
+                p = (p - x) / (1 - x);
+            }
+        }
+
+        for (long i = 0; i < n; i++) {
+            if (random.nextDouble() < p) successes++;
+        }
+        return successes;
+    }
+
+    /**
+     * @param a Must be >= 1
+     * @param b Must be >= 1
+     */
+    static double beta(RandomGenerator random, double a, double b) {
+        double x = gamma(random, a);
+        double y = gamma(random, b);
+        return x / (x + y);
+    }
+
+    /**
+     * Marsaglia and Tsang's method for Gamma(shape, 1)
+     *
+     * @param shape Must be >= 1
+     */
+    static double gamma(RandomGenerator random, double shape) {
+        assert shape >= 1;
+
+        final double d = shape - 1.0 / 3.0;
+        final double c = 1.0 / Math.sqrt(9.0 * d);
+
+        while (true) {
+            double x = random.nextGaussian();
+            double v = 1.0 + c * x;
+            if (v <= 0) continue;
+
+            v = v * v * v;
+            double u = random.nextDouble();
+            double xx = x * x;
+
+            if (u < 1.0 - 0.0331 * xx * xx) return d * v;
+            if (Math.log(u) < 0.5 * xx + d * (1.0 - v + Math.log(v))) return d * v;
+        }
+    }
+
+}
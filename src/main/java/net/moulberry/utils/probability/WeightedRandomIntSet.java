@@ -0,0 +1,162 @@
+package net.moulberry.utils.probability;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.Range;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+
+/**
+ * Weighted random set specialized for primitive int elements
+ * Uses the same flat layout as {@link CompactWeightedRandomSet} with a primitive index,
+ * so adding, removing and sampling never box or allocate (outside of growing the backing arrays)
+ */
+public class WeightedRandomIntSet {
+
+    private final ImplicitSumTree weights;
+    private final IntSlotIndex index;
+    private int[] elements;
+    private int size = 0;
+
+    public WeightedRandomIntSet() {
+        this(16);
+    }
+
+    public WeightedRandomIntSet(@Range(from = 0, to = Integer.MAX_VALUE) int expectedSize) {
+        this.weights = new ImplicitSumTree(expectedSize);
+        this.index = new IntSlotIndex(expectedSize);
+        this.elements = new int[weights.capacity()];
+    }
+
+    @Contract(pure = true)
+    public @Range(from = 0, to = Integer.MAX_VALUE) int size() {
+        return size;
+    }
+
+    @Contract(pure = true)
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Contract(pure = true)
+    public float totalWeight() {
+        if (size == 0) return 0;
+        return (float) weights.total();
+    }
+
+    @Contract(pure = true)
+    public boolean contains(int element) {
+        return index.get(element) >= 0;
+    }
+
+    /**
+     * @return The weight of `element`, or 0 if it isn't in the set
+     */
+    @Contract(pure = true)
+    public float getWeight(int element) {
+        int slot = index.get(element);
+        if (slot < 0) return 0;
+        return (float) weights.get(slot);
+    }
+
+    /**
+     * @throws NoSuchElementException If the set is empty
+     */
+    @Contract(pure = true)
+    public int sample() {
+        if (size == 0) throw new NoSuchElementException();
+        return elements[weights.find(ThreadLocalRandom.current().nextDouble(weights.total()))];
+    }
+
+    /**
+     * @throws NoSuchElementException If the set is empty
+     */
+    @Contract(mutates = "this")
+    public int pop() {
+        if (size == 0) throw new NoSuchElementException();
+
+        int slot = weights.find(ThreadLocalRandom.current().nextDouble(weights.total()));
+        int element = elements[slot];
+
+        index.remove(element);
+        removeSlot(slot);
+        return element;
+    }
+
+    @Contract(mutates = "this")
+    public boolean add(int element) {
+        return add(element, 1);
+    }
+
+    @Contract(mutates = "this")
+    public boolean add(int element, float weight) {
+        assert weight > 0;
+        if (index.get(element) >= 0) return false; // Already have element
+
+        if (size == weights.capacity()) {
+            weights.ensureCapacity(size + 1);
+            elements = Arrays.copyOf(elements, weights.capacity());
+        }
+
+        int slot = size++;
+        elements[slot] = element;
+        weights.set(slot, weight);
+        index.put(element, slot);
+        return true;
+    }
+
+    @Contract(mutates = "this")
+    public boolean remove(int element) {
+        int slot = index.remove(element);
+        if (slot < 0) return false;
+
+        removeSlot(slot);
+        return true;
+    }
+
+    @Contract(mutates = "this")
+    public void clear() {
+        weights.clear();
+        index.clear();
+        size = 0;
+    }
+
+    public void forEach(IntConsumer action) {
+        for (int slot = 0; slot < size; slot++) {
+            action.accept(elements[slot]);
+        }
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(elements, size);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    // region [Internal Implementation]
+
+    /**
+     * Removes the element in `slot` by moving the last element into it
+     * The caller is responsible for removing the element from the index
+     */
+    private void removeSlot(int slot) {
+        int last = --size;
+
+        if (slot != last) {
+            int moved = elements[last];
+            elements[slot] = moved;
+            weights.set(slot, weights.get(last));
+            index.put(moved, slot);
+        }
+
+        weights.set(last, 0);
+    }
+
+    // endregion
+
+}
@@ -6,21 +6,91 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Range;
 
+import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+import java.util.random.RandomGenerator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class WeightedRandomSet<E> implements Set<E> {
 
+    /**
+     * Below this many samples a batch is drawn with independent descents instead of a single sorted descent
+     */
+    private static final int BATCH_DESCENT_THRESHOLD = 16;
+
+    /**
+     * {@link #sampleStream(RandomGenerator.SplittableGenerator, long)} draws in chunks of this many samples,
+     * each with its own generator, so the result doesn't depend on how the chunks are spread across threads
+     */
+    private static final int SAMPLE_STREAM_CHUNK = 4096;
+
+    /**
+     * A subtree is rebuilt once one of its children holds more than this fraction of its leaves,
+     * which bounds the depth of the tree to log(n) / log(1 / BALANCE_FACTOR) + 1
+     */
+    private static final float BALANCE_FACTOR = 0.75f;
+
+    /**
+     * Bulk removals of more than this fraction of the set rebuild the remaining elements instead of removing one at a time
+     */
+    private static final float BULK_REBUILD_FRACTION = 0.25f;
+
+    /**
+     * Stored weights are multiplied back into the tree once the global scale leaves this range,
+     * so that weights stored relative to the scale can't overflow or underflow a float
+     * A new weight that still doesn't fit relative to the scale folds it back early, see {@link #storedWeight(double)}
+     */
+    private static final double MIN_SCALE = 0x1p-64;
+    private static final double MAX_SCALE = 0x1p64;
+
+    /**
+     * Categories are bits of an int mask, see {@link #add(Object, float, int)}
+     */
+    public static final int MAX_CATEGORIES = Integer.SIZE;
+
+    /**
+     * Binary format written by {@link #writeTo(ByteBuffer, ElementCodec)}, always little-endian
+     */
+    private static final int SERIAL_MAGIC = 0x31535257; // "WRS1"
+    private static final byte SERIAL_VERSION = 1;
+    private static final byte SERIAL_FLAG_SIMULTANEOUS_ITERATION = 1;
+    private static final byte SERIAL_FLAG_CATEGORIES = 1 << 1;
+    private static final int SERIAL_HEADER_BYTES = Integer.BYTES + 2 + Integer.BYTES + Double.BYTES;
+
     // region [Node Class Definitions]
 
     private static abstract class Node<E> {
-        float weight;
+        /**
+         * The weight of a leaf, or the sum of the leaves under an internal node, relative to the global scale
+         * Sums are kept in double precision and always recomputed from the children, see {@link #update(InternalNode, int, int)}
+         */
+        double weight;
         int leaves = 0;
         @Nullable InternalNode<E> parent = null;
+        /**
+         * The tree version this node was created in, the node may only be modified in place while it matches the set's version
+         * Parent pointers aren't part of the shared state and are always updated in place
+         */
+        int version = 0;
 
-        public Node(float weight) {
+        public Node(double weight) {
             this.weight = weight;
         }
 
@@ -35,19 +105,36 @@ public class WeightedRandomSet<E> implements Set<E> {
             }
         }
 
-        public float iterationWeight() {
+        public double iterationWeight() {
             return weight;
         }
 
         public void resetIteration() {}
+
+        /**
+         * @return The total weight of the leaves under this node which are in `category`
+         */
+        public abstract double categoryWeight(int category);
     }
 
     private static class LeafNode<E> extends Node<E> {
-        final @Nullable E element;
+        // Only reassigned when a pooled node is reused, see setNodePoolSize
+        @Nullable E element;
+        int categories;
+
+        public LeafNode(@Nullable E element, double weight) {
+            this(element, weight, 0);
+        }
 
-        public LeafNode(@Nullable E element, float weight) {
+        public LeafNode(@Nullable E element, double weight, int categories) {
             super(weight);
             this.element = element;
+            this.categories = categories;
+        }
+
+        @Override
+        public double categoryWeight(int category) {
+            return (categories & (1 << category)) != 0 ? weight : 0;
         }
     }
 
@@ -57,18 +144,23 @@ public class WeightedRandomSet<E> implements Set<E> {
 
         boolean iteratedLeft = false;
         boolean iteratedRight = false;
-        float iterationWeight = -1;
+        double iterationWeight = -1;
 
-        public InternalNode(float weight, @NotNull Node<E> left, @NotNull Node<E> right) {
+        /**
+         * Indexed by category, only allocated once a leaf under this node has a category
+         */
+        double[] categoryWeights = null;
+
+        public InternalNode(double weight, @NotNull Node<E> left, @NotNull Node<E> right) {
             super(weight);
             this.left = left;
             this.right = right;
         }
 
-        public void updateIterationWeight(float deltaWeight) {
+        public void updateIterationWeight(double deltaWeight) {
             if (iterationWeight < 0) iterationWeight = this.weight;
-            iterationWeight = iterationWeight + deltaWeight;
-            assert iterationWeight >= 0;
+            // Removing children one at a time can round slightly below 0
+            iterationWeight = Math.max(0, iterationWeight + deltaWeight);
 
             if (this.parent != null) {
                 this.parent.updateIterationWeight(deltaWeight);
@@ -99,76 +191,664 @@ public class WeightedRandomSet<E> implements Set<E> {
         }
 
         @Override
-        public float iterationWeight() {
+        public double iterationWeight() {
             return iterationWeight >= 0 ? iterationWeight : weight;
         }
+
+        @Override
+        public double categoryWeight(int category) {
+            if (categoryWeights == null || category >= categoryWeights.length) return 0;
+            return categoryWeights[category];
+        }
+
+        public void addCategoryWeight(int categories, double deltaWeight) {
+            while (categories != 0) {
+                int category = Integer.numberOfTrailingZeros(categories);
+                categories &= categories - 1;
+
+                ensureCategory(category);
+                categoryWeights[category] += deltaWeight;
+            }
+        }
+
+        /**
+         * Recomputed from the children rather than adjusted by a delta,
+         * so a subtree left without any leaves in a category is exactly 0 instead of a rounding residue
+         */
+        public void recomputeCategoryWeights(int categories) {
+            while (categories != 0) {
+                int category = Integer.numberOfTrailingZeros(categories);
+                categories &= categories - 1;
+
+                ensureCategory(category);
+                categoryWeights[category] = left.categoryWeight(category) + right.categoryWeight(category);
+            }
+        }
+
+        private void ensureCategory(int category) {
+            if (categoryWeights == null) {
+                categoryWeights = new double[category + 1];
+            } else if (categoryWeights.length <= category) {
+                categoryWeights = Arrays.copyOf(categoryWeights, category + 1);
+            }
+        }
+
+        public void addCategoryWeights(Node<E> child) {
+            if (child instanceof LeafNode<E> leaf) {
+                addCategoryWeight(leaf.categories, leaf.weight);
+            } else if (child instanceof InternalNode<E> internal && internal.categoryWeights != null) {
+                double[] childWeights = internal.categoryWeights;
+                for (int category = 0; category < childWeights.length; category++) {
+                    if (childWeights[category] != 0) {
+                        addCategoryWeight(1 << category, childWeights[category]);
+                    }
+                }
+            }
+        }
     }
 
     // endregion
 
     private final boolean supportSimultaneousIteration;
-    private final HashMap<E, LeafNode<E>> map = new HashMap<>();
+    private final HashMap<E, LeafNode<E>> map;
     private int iterationId = 0;
     private @Nullable Node<E> root = null;
+    private int modCount = 0;
+    /**
+     * Multiplier applied to every weight stored in the tree, see {@link #scaleAll(float)}
+     */
+    private double scale = 1;
+
+    /**
+     * Used whenever a method isn't given a generator, null uses {@link ThreadLocalRandom}
+     */
+    private @Nullable RandomGenerator randomGenerator = null;
+
+    /**
+     * Nodes detached by removals, kept for reuse by later additions, see {@link #setNodePoolSize(int)}
+     */
+    private int nodePoolSize = 0;
+    private final ArrayDeque<LeafNode<E>> freeLeaves = new ArrayDeque<>();
+    private final ArrayDeque<InternalNode<E>> freeInternalNodes = new ArrayDeque<>();
+
+    /**
+     * Notified before any change to the total weight, used by the {@link GroupedWeightedRandomSet} that owns this set
+     */
+    @Nullable Runnable weightListener = null;
+
+    /**
+     * Nodes from older versions may be shared with snapshot iterators and are copied before being modified, see {@link #own(InternalNode)}
+     * A writable node's ancestors are always writable too, so a shared root means the whole tree is shared
+     */
+    private int treeVersion = 0;
 
     public WeightedRandomSet() {
         this(false);
     }
 
+    /**
+     * @param supportSimultaneousIteration Iterators are snapshots that any number of can run at once, see {@link #iterator()}
+     */
     public WeightedRandomSet(boolean supportSimultaneousIteration) {
+        this(supportSimultaneousIteration, 0);
+    }
+
+    private WeightedRandomSet(boolean supportSimultaneousIteration, int expectedSize) {
         this.supportSimultaneousIteration = supportSimultaneousIteration;
+        this.map = new HashMap<>((int) (expectedSize / 0.75f) + 1);
+    }
+
+    /**
+     * Creates a set containing every key of `weights` in O(n)
+     * The tree is built bottom-up and perfectly balanced instead of inserting elements one at a time
+     */
+    public static <E> WeightedRandomSet<E> of(@NotNull Map<? extends E, Float> weights) {
+        return of(weights, false);
+    }
+
+    /**
+     * Creates a set containing every key of `weights` in O(n)
+     * The tree is built bottom-up and perfectly balanced instead of inserting elements one at a time
+     */
+    public static <E> WeightedRandomSet<E> of(@NotNull Map<? extends E, Float> weights, boolean supportSimultaneousIteration) {
+        WeightedRandomSet<E> set = new WeightedRandomSet<>(supportSimultaneousIteration, weights.size());
+        LeafNode<E>[] leaves = newLeafArray(weights.size());
+
+        int index = 0;
+        for (Map.Entry<? extends E, Float> entry : weights.entrySet()) {
+            E element = Objects.requireNonNull(entry.getKey());
+            float weight = entry.getValue();
+            assert weight > 0;
+
+            LeafNode<E> leaf = new LeafNode<>(element, weight);
+            leaves[index++] = leaf;
+            set.map.put(element, leaf);
+        }
+
+        set.root = buildTree(leaves, 0, index);
+        return set;
     }
 
     @Contract(pure = true)
     public float totalWeight() {
         if (root == null) return 0;
-        return root.weight;
+        return (float) (root.weight * scale);
+    }
+
+    /**
+     * @return The total weight of the elements in `category`
+     */
+    @Contract(pure = true)
+    public float totalCategoryWeight(@Range(from = 0, to = MAX_CATEGORIES - 1) int category) {
+        Objects.checkIndex(category, MAX_CATEGORIES);
+        if (root == null) return 0;
+        return (float) (root.categoryWeight(category) * scale);
     }
 
     public WeightedRandomSet<E> deepClone() {
-        WeightedRandomSet<E> v = new WeightedRandomSet<>();
-        for (Map.Entry<E, LeafNode<E>> entry : map.entrySet()) {
-            v.add(entry.getKey(), entry.getValue().weight);
+        WeightedRandomSetEvents.Rebuild event = WeightedRandomSetEvents.beginRebuild();
+        WeightedRandomSet<E> v = new WeightedRandomSet<>(false, map.size());
+        LeafNode<E>[] leaves = newLeafArray(map.size());
+        int index = root == null ? 0 : collectLeaves(root, leaves, 0);
+
+        // Copied in tree order rather than map order, which can differ between runs
+        for (int i = 0; i < index; i++) {
+            LeafNode<E> copy = new LeafNode<>(leaves[i].element, leaves[i].weight, leaves[i].categories);
+            leaves[i] = copy;
+            v.map.put(copy.element, copy);
         }
+
+        v.root = buildTree(leaves, 0, index);
+        v.scale = scale;
+        v.randomGenerator = randomGenerator;
+        v.nodePoolSize = nodePoolSize;
+
+        WeightedRandomSetEvents.commitRebuild(event, "clone", index);
         return v;
     }
 
+    /**
+     * Creates a frozen snapshot of this set that samples in O(1)
+     * The snapshot is unaffected by later changes to this set
+     */
+    @Contract(pure = true)
+    public AliasSampler<E> toAliasSampler() {
+        Object[] elements = new Object[map.size()];
+        float[] weights = new float[map.size()];
+
+        int index = 0;
+        for (LeafNode<E> leaf : map.values()) {
+            elements[index] = leaf.element;
+            weights[index] = (float) leaf.weight;
+            index++;
+        }
+
+        return new AliasSampler<>(elements, weights, totalWeight());
+    }
+
+    /**
+     * Creates an immutable copy of this set that can be shared between threads without locking
+     * The copy is unaffected by later changes to this set
+     */
+    @Contract(pure = true)
+    public ImmutableWeightedRandomSet<E> freeze() {
+        Object[] elements = new Object[map.size()];
+        float[] weights = new float[map.size()];
+
+        if (root != null) {
+            LeafNode<E>[] leaves = newLeafArray(map.size());
+            int count = collectLeaves(root, leaves, 0);
+            for (int i = 0; i < count; i++) {
+                elements[i] = leaves[i].element;
+                weights[i] = (float) (leaves[i].weight * scale);
+            }
+        }
+
+        return new ImmutableWeightedRandomSet<>(elements, weights);
+    }
+
+    // region [Serialization]
+
+    /**
+     * @return The exact number of bytes {@link #writeTo(ByteBuffer, ElementCodec)} will write
+     */
+    @Contract(pure = true)
+    public long serializedSize(@NotNull ElementCodec<? super E> codec) {
+        boolean categories = hasCategories();
+        long size = SERIAL_HEADER_BYTES;
+        for (LeafNode<E> leaf : map.values()) {
+            size += Float.BYTES + (categories ? Integer.BYTES : 0) + codec.encodedSize(leaf.element);
+        }
+        return size;
+    }
+
+    /**
+     * Writes the set starting at the position of `buffer`, advancing it past the written bytes
+     * Leaves are written in tree order, so {@link #readFrom(ByteBuffer, ElementCodec)} can rebuild the tree in a single O(n) pass
+     *
+     * @throws BufferOverflowException If `buffer` has less than {@link #serializedSize(ElementCodec)} bytes remaining
+     */
+    @Contract(mutates = "param1")
+    public void writeTo(@NotNull ByteBuffer buffer, @NotNull ElementCodec<? super E> codec) {
+        Objects.requireNonNull(codec);
+        ByteBuffer out = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        boolean categories = hasCategories();
+
+        out.putInt(SERIAL_MAGIC);
+        out.put(SERIAL_VERSION);
+        out.put((byte) ((supportSimultaneousIteration ? SERIAL_FLAG_SIMULTANEOUS_ITERATION : 0) |
+            (categories ? SERIAL_FLAG_CATEGORIES : 0)));
+        out.putInt(map.size());
+        out.putDouble(scale);
+
+        if (root != null) {
+            LeafNode<E>[] leaves = newLeafArray(map.size());
+            int count = collectLeaves(root, leaves, 0);
+            for (int i = 0; i < count; i++) {
+                LeafNode<E> leaf = leaves[i];
+                // Leaf weights are always rounded to float when set, only the sums need double precision
+                out.putFloat((float) leaf.weight);
+                if (categories) out.putInt(leaf.categories);
+                codec.encode(leaf.element, out);
+            }
+        }
+
+        buffer.position(out.position());
+    }
+
+    /**
+     * Writes the set to `path` through a memory-mapped file, replacing any existing file
+     */
+    public void writeTo(@NotNull Path path, @NotNull ElementCodec<? super E> codec) throws IOException {
+        long size = serializedSize(codec);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Serialized set is too large to map: " + size + " bytes");
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            writeTo(buffer, codec);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Reads a set written by {@link #writeTo(ByteBuffer, ElementCodec)} starting at the position of `buffer`,
+     * advancing it past the read bytes
+     * The tree is rebuilt bottom-up from the stored weights in O(n) instead of inserting elements one at a time
+     *
+     * @throws IllegalArgumentException If `buffer` doesn't contain a valid set
+     */
+    public static <E> WeightedRandomSet<E> readFrom(@NotNull ByteBuffer buffer, @NotNull ElementCodec<? extends E> codec) {
+        Objects.requireNonNull(codec);
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            if (in.getInt() != SERIAL_MAGIC) {
+                throw new IllegalArgumentException("Not a serialized WeightedRandomSet");
+            }
+            byte version = in.get();
+            if (version != SERIAL_VERSION) {
+                throw new IllegalArgumentException("Unsupported WeightedRandomSet version: " + version);
+            }
+
+            byte flags = in.get();
+            boolean categories = (flags & SERIAL_FLAG_CATEGORIES) != 0;
+            int size = in.getInt();
+            double scale = in.getDouble();
+            if (size < 0 || !(scale > 0) || Double.isInfinite(scale)) {
+                throw new IllegalArgumentException("Corrupt WeightedRandomSet header");
+            }
+            // Every entry takes at least its weight and categories, so a corrupt size is caught before allocating for it
+            int minEntryBytes = Float.BYTES + (categories ? Integer.BYTES : 0);
+            if (size > in.remaining() / minEntryBytes) {
+                throw new IllegalArgumentException("Truncated WeightedRandomSet, header claims " + size + " elements");
+            }
+
+            WeightedRandomSet<E> set = new WeightedRandomSet<>((flags & SERIAL_FLAG_SIMULTANEOUS_ITERATION) != 0, size);
+            LeafNode<E>[] leaves = newLeafArray(size);
+
+            for (int i = 0; i < size; i++) {
+                float weight = in.getFloat();
+                int leafCategories = categories ? in.getInt() : 0;
+                E element = Objects.requireNonNull(codec.decode(in));
+
+                if (!(weight > 0) || Float.isInfinite(weight)) {
+                    throw new IllegalArgumentException("Invalid weight for " + element + ": " + weight);
+                }
+
+                LeafNode<E> leaf = new LeafNode<>(element, weight, leafCategories);
+                if (set.map.putIfAbsent(element, leaf) != null) {
+                    throw new IllegalArgumentException("Duplicate element: " + element);
+                }
+                leaves[i] = leaf;
+            }
+
+            set.root = buildTree(leaves, 0, size);
+            set.scale = scale;
+            buffer.position(in.position());
+            return set;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated WeightedRandomSet", e);
+        }
+    }
+
+    /**
+     * Reads a set written by {@link #writeTo(Path, ElementCodec)} through a read-only memory-mapped file
+     */
+    public static <E> WeightedRandomSet<E> readFrom(@NotNull Path path, @NotNull ElementCodec<? extends E> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readFrom(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), codec);
+        }
+    }
+
+    private boolean hasCategories() {
+        for (LeafNode<E> leaf : map.values()) {
+            if (leaf.categories != 0) return true;
+        }
+        return false;
+    }
+
+    // endregion
+
+    /**
+     * Sets the generator used by every method that isn't given one, including iterators
+     * The generator is shared by every thread using the set, so it must be thread-safe if the set is read concurrently
+     *
+     * @param randomGenerator null to go back to {@link ThreadLocalRandom}
+     */
+    @Contract(mutates = "this")
+    public void setRandomGenerator(@Nullable RandomGenerator randomGenerator) {
+        this.randomGenerator = randomGenerator;
+    }
+
+    /**
+     * Keeps up to `nodePoolSize` leaf nodes and as many internal nodes detached by removals, and reuses them for later additions
+     * and for rebuilding unbalanced subtrees, so a set with a steady churn of adds and removes doesn't allocate any nodes
+     * Rebuilds and bulk removals still allocate temporary arrays, and the backing HashMap allocates an entry per add
+     * Pooled nodes are held even if the set shrinks, use 0 (the default) to disable pooling and release them
+     */
+    @Contract(mutates = "this")
+    public void setNodePoolSize(@Range(from = 0, to = Integer.MAX_VALUE) int nodePoolSize) {
+        if (nodePoolSize < 0) throw new IllegalArgumentException("nodePoolSize must be non-negative");
+        this.nodePoolSize = nodePoolSize;
+
+        while (freeLeaves.size() > nodePoolSize) freeLeaves.pop();
+        while (freeInternalNodes.size() > nodePoolSize) freeInternalNodes.pop();
+    }
+
     @Contract(pure = true)
     public @Flow(sourceIsContainer = true) @Nullable E sample() {
+        return sample(random());
+    }
+
+    /**
+     * Samples using `random` instead of the set's generator, a seeded generator gives a reproducible sequence
+     * for a set built by the same sequence of modifications
+     */
+    @Contract(pure = true)
+    public @Flow(sourceIsContainer = true) @Nullable E sample(@NotNull RandomGenerator random) {
         if (root == null) return null;
+        WeightedRandomSetEvents.Operation event = WeightedRandomSetEvents.beginOperation();
 
-        LeafNode<E> node = get(ThreadLocalRandom.current().nextFloat(root.weight));
+        LeafNode<E> node = get(random.nextDouble(root.weight));
 
         if (node == null) {
             return null;
         } else {
+            if (event != null) WeightedRandomSetEvents.commitOperation(event, "sample", map.size(), depthOf(node));
             return node.element;
         }
     }
 
+    /**
+     * Samples only among the elements in `category`, without allocating, in O(log n)
+     *
+     * @param category The index of a category bit given to {@link #add(Object, float, int)}
+     * @return null if no element is in `category`
+     */
+    @Contract(pure = true)
+    public @Flow(sourceIsContainer = true) @Nullable E sampleCategory(@Range(from = 0, to = MAX_CATEGORIES - 1) int category) {
+        Objects.checkIndex(category, MAX_CATEGORIES);
+        if (root == null) return null;
+
+        double total = root.categoryWeight(category);
+        if (total <= 0) return null;
+
+        double value = random().nextDouble(total);
+        Node<E> node = root;
+
+        while (node instanceof InternalNode<E> internal) {
+            double leftWeight = internal.left.categoryWeight(category);
+            // Never descend into a subtree without the category, even if rounding pushes the value past the end
+            if (leftWeight > 0 && (value < leftWeight || internal.right.categoryWeight(category) <= 0)) {
+                node = internal.left;
+            } else {
+                value -= leftWeight;
+                node = internal.right;
+            }
+        }
+
+        return ((LeafNode<E>) node).element;
+    }
+
+    /**
+     * Samples only among the elements matching `filter`, without modifying or copying the set
+     * Elements are drawn in weighted order without replacement until one matches, which is exact,
+     * but costs O(log n) per rejected element; prefer categories for filters that rarely match
+     *
+     * @return null if no element matches
+     */
+    @Contract(pure = true)
+    public @Flow(sourceIsContainer = true) @Nullable E sample(@NotNull Predicate<? super E> filter) {
+        Objects.requireNonNull(filter);
+        if (root == null) return null;
+
+        WeightedOrderIterator iterator = new WeightedOrderIterator(root, false);
+        while (iterator.hasNext()) {
+            E element = iterator.next();
+            if (filter.test(element)) return element;
+        }
+        return null;
+    }
+
+    /**
+     * Draws `n` independent samples into `out[0, n)`, in random order
+     * If the set is empty the range is filled with null
+     */
+    @Contract(mutates = "param2")
+    public void sample(@Range(from = 0, to = Integer.MAX_VALUE) int n, E[] out) {
+        Objects.checkFromIndexSize(0, n, out.length);
+        sampleInto(random(), n, out);
+    }
+
+    /**
+     * Draws `n` independent samples as a parallel stream, in random order
+     * The samples are split into fixed-size chunks that each get a generator split off `generator` up front,
+     * so the same seed gives the same stream whether it's consumed sequentially or across any number of threads
+     * <p>
+     * Splitting advances `generator`. The set must not be modified while the stream is consumed
+     *
+     * @throws ConcurrentModificationException If the set is modified while the stream is consumed
+     */
+    @Contract(pure = true)
+    @SuppressWarnings("unchecked")
+    public @NotNull Stream<E> sampleStream(@NotNull RandomGenerator.SplittableGenerator generator,
+                                           @Range(from = 0, to = Long.MAX_VALUE) long n) {
+        Objects.requireNonNull(generator);
+        if (n < 0) throw new IllegalArgumentException("n must be non-negative");
+        if (root == null || n == 0) return Stream.empty();
+
+        long chunkCount = (n + SAMPLE_STREAM_CHUNK - 1) / SAMPLE_STREAM_CHUNK;
+        if (chunkCount > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("n is too large: " + n);
+
+        RandomGenerator.SplittableGenerator[] generators = new RandomGenerator.SplittableGenerator[(int) chunkCount];
+        for (int chunk = 0; chunk < generators.length; chunk++) {
+            generators[chunk] = generator.split();
+        }
+
+        final int expectedModCount = modCount;
+        return IntStream.range(0, generators.length).parallel().mapToObj(chunk -> {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+
+            int size = (int) Math.min(SAMPLE_STREAM_CHUNK, n - (long) chunk * SAMPLE_STREAM_CHUNK);
+            E[] out = (E[]) new Object[size];
+            sampleInto(generators[chunk], size, out);
+            return Arrays.stream(out);
+        }).flatMap(Function.identity());
+    }
+
+    private void sampleInto(RandomGenerator random, int n, E[] out) {
+        if (root == null) {
+            Arrays.fill(out, 0, n, null);
+            return;
+        }
+
+        if (n < BATCH_DESCENT_THRESHOLD) {
+            for (int i = 0; i < n; i++) {
+                LeafNode<E> node = get(random.nextDouble(root.weight));
+                out[i] = node == null ? null : node.element;
+            }
+            return;
+        }
+
+        int[] index = {0};
+        sampleBatch(random, n, (element, count) -> {
+            int start = index[0];
+            Arrays.fill(out, start, start + count, element);
+            index[0] = start + count;
+        });
+
+        // The batch comes out grouped by element, shuffle so that every position is an independent sample
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            E temp = out[i];
+            out[i] = out[j];
+            out[j] = temp;
+        }
+    }
+
+    /**
+     * Draws `n` independent samples and passes each of them to `action`
+     * Samples are delivered grouped by element rather than in random order, does nothing if the set is empty
+     */
+    public void sample(@Range(from = 0, to = Integer.MAX_VALUE) int n, @NotNull Consumer<? super E> action) {
+        Objects.requireNonNull(action);
+        if (n < 0) throw new IllegalArgumentException("n must be non-negative");
+        if (root == null) return;
+
+        RandomGenerator random = random();
+
+        if (n < BATCH_DESCENT_THRESHOLD) {
+            for (int i = 0; i < n; i++) {
+                LeafNode<E> node = get(random.nextDouble(root.weight));
+                if (node != null) action.accept(node.element);
+            }
+            return;
+        }
+
+        sampleBatch(random, n, (element, count) -> {
+            for (int i = 0; i < count; i++) {
+                action.accept(element);
+            }
+        });
+    }
+
+    /**
+     * Counts how many times each element comes up in `n` independent samples, without drawing them one by one
+     * `action` is called once for every element that came up at least once, with its count
+     *
+     * The draws are split between subtrees with binomial samples, so the cost depends on the
+     * number of distinct elements drawn and the depth of the tree rather than on `n`
+     */
+    public void sampleCounts(@Range(from = 0, to = Long.MAX_VALUE) long n, @NotNull ObjLongConsumer<? super E> action) {
+        sampleCounts(random(), n, action);
+    }
+
+    /**
+     * {@link #sampleCounts(long, ObjLongConsumer)} using `random` instead of the set's generator
+     */
+    public void sampleCounts(@NotNull RandomGenerator random, @Range(from = 0, to = Long.MAX_VALUE) long n,
+                             @NotNull ObjLongConsumer<? super E> action) {
+        Objects.requireNonNull(random);
+        Objects.requireNonNull(action);
+        if (n < 0) throw new IllegalArgumentException("n must be non-negative");
+        if (root == null || n == 0) return;
+
+        sampleCounts(random, root, n, action);
+    }
+
+    /**
+     * Picks `k` distinct elements by weight, distributed as if by calling {@link #pop()} `k` times,
+     * without modifying or copying the set. Returns every element if the set has fewer than `k`
+     * The result is in the order the elements were picked, O(k log n)
+     */
+    @Contract(pure = true)
+    public @NotNull List<E> sampleDistinct(@Range(from = 0, to = Integer.MAX_VALUE) int k) {
+        if (k < 0) throw new IllegalArgumentException("k must be non-negative");
+
+        int count = Math.min(k, size());
+        List<E> result = new ArrayList<>(count);
+        if (count == 0) return result;
+
+        assert root != null;
+        WeightedOrderIterator iterator = new WeightedOrderIterator(root, false);
+        for (int i = 0; i < count; i++) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+
     @Contract(mutates = "this")
     public @Flow(sourceIsContainer = true) @Nullable E pop() {
+        return pop(random());
+    }
+
+    /**
+     * {@link #pop()} using `random` instead of the set's generator
+     */
+    @Contract(mutates = "this")
+    public @Flow(sourceIsContainer = true) @Nullable E pop(@NotNull RandomGenerator random) {
         if (root == null) return null;
+        WeightedRandomSetEvents.Operation event = WeightedRandomSetEvents.beginOperation();
+        beforeModification();
 
-        LeafNode<E> node = get(ThreadLocalRandom.current().nextFloat(root.weight));
+        LeafNode<E> node = get(random.nextDouble(root.weight));
 
         if (node == null) {
             return null;
         } else {
+            E element = node.element;
+            int depth = event != null ? depthOf(node) : 0;
             removeNode(node);
-            map.remove(node.element);
-            return node.element;
+            map.remove(element);
+            recycle(node);
+
+            if (event != null) WeightedRandomSetEvents.commitOperation(event, "pop", map.size(), depth);
+            return element;
         }
     }
 
     @Contract(mutates = "this")
     public boolean add(@Flow(targetIsContainer = true) @NotNull E e, float weight) {
+        return add(e, weight, 0);
+    }
+
+    /**
+     * Adds an element which belongs to every category whose bit is set in `categories`
+     * Each subtree tracks its total weight per category, so {@link #sampleCategory(int)} can sample from a single category in O(log n)
+     */
+    @Contract(mutates = "this")
+    public boolean add(@Flow(targetIsContainer = true) @NotNull E e, float weight, int categories) {
         Objects.requireNonNull(e);
 
         assert weight > 0;
         if (map.containsKey(e)) return false; // Already have element
+        WeightedRandomSetEvents.Operation event = WeightedRandomSetEvents.beginOperation();
+        beforeModification();
 
-        LeafNode<E> newNode = new LeafNode<>(e, weight);
+        LeafNode<E> newNode = newLeaf(e, storedWeight(weight), categories);
 
         if (root == null) {
             root = newNode;
@@ -183,14 +863,178 @@ public class WeightedRandomSet<E> implements Set<E> {
                 }
             }
 
-            insert(node, newNode);
+            insert((LeafNode<E>) node, newNode);
+            rebalance(newNode.parent);
         }
 
         this.iterationId = 0;
         map.put(e, newNode);
+
+        if (event != null) WeightedRandomSetEvents.commitOperation(event, "add", map.size(), depthOf(newNode));
+        return true;
+    }
+
+    /**
+     * @return The weight of `element`, or 0 if it isn't in the set
+     */
+    @Contract(pure = true)
+    public float getWeight(@NotNull Object element) {
+        LeafNode<E> node = map.get(element);
+        if (node == null) return 0;
+        return (float) (node.weight * scale);
+    }
+
+    /**
+     * Changes the weight of an element in O(log n) without restructuring the tree
+     * In-progress iterators remain valid
+     *
+     * @return false if `element` isn't in the set
+     */
+    @Contract(mutates = "this")
+    public boolean setWeight(@NotNull E element, float weight) {
+        assert weight > 0;
+
+        LeafNode<E> node = map.get(element);
+        if (node == null) return false;
+        beforeModification();
+
+        // Renormalizing may have replaced the leaf
+        float stored = storedWeight(weight);
+        updateWeight(map.get(element), stored);
+        return true;
+    }
+
+    /**
+     * Adds `deltaWeight` to the weight of an element in O(log n) without restructuring the tree
+     * The resulting weight must be positive, in-progress iterators remain valid
+     *
+     * @return false if `element` isn't in the set
+     */
+    @Contract(mutates = "this")
+    public boolean addWeight(@NotNull E element, float deltaWeight) {
+        LeafNode<E> node = map.get(element);
+        if (node == null) return false;
+        beforeModification();
+
+        double weight = node.weight * scale + deltaWeight;
+        assert weight > 0;
+
+        // Renormalizing may have replaced the leaf
+        float stored = storedWeight(weight);
+        updateWeight(map.get(element), stored);
         return true;
     }
 
+    /**
+     * Multiplies the weight of every element by `factor` in O(1)
+     * The factor is applied lazily through a global multiplier, which is occasionally folded back into the tree in O(n)
+     */
+    @Contract(mutates = "this")
+    public void scaleAll(float factor) {
+        if (!(factor > 0) || factor == Float.POSITIVE_INFINITY) {
+            throw new IllegalArgumentException("factor must be positive and finite: " + factor);
+        }
+        scaleAll((double) factor);
+    }
+
+    /**
+     * Exponentially decays the weight of every element in O(1), so that weights halve every `halfLife`
+     *
+     * @param elapsed Time passed since the last decay, in the same unit as `halfLife`
+     */
+    @Contract(mutates = "this")
+    public void decay(double halfLife, double elapsed) {
+        if (!(halfLife > 0) || halfLife == Double.POSITIVE_INFINITY) {
+            throw new IllegalArgumentException("halfLife must be positive and finite: " + halfLife);
+        }
+        if (!(elapsed >= 0) || elapsed == Double.POSITIVE_INFINITY) {
+            throw new IllegalArgumentException("elapsed must be non-negative and finite: " + elapsed);
+        }
+        scaleAll(Math.pow(0.5, elapsed / halfLife));
+    }
+
+    private void scaleAll(double factor) {
+        if (weightListener != null) weightListener.run();
+        scale *= factor;
+        if (scale < MIN_SCALE || scale > MAX_SCALE) {
+            renormalize();
+        }
+    }
+
+    /**
+     * @return `weight` relative to the global scale, after folding the scale into the tree
+     * if the result wouldn't be a positive finite float
+     */
+    private float storedWeight(double weight) {
+        float stored = (float) (weight / scale);
+        if (scale != 1 && (stored == 0 || stored == Float.POSITIVE_INFINITY)) {
+            renormalize();
+            stored = (float) weight;
+        }
+        return stored;
+    }
+
+    /**
+     * Folds the global scale into the stored weights and resets it to 1
+     * Weights out of range are clamped to the smallest positive or largest finite float
+     */
+    private void renormalize() {
+        if (root == null) {
+            scale = 1;
+            return;
+        }
+
+        beforeModification();
+        WeightedRandomSetEvents.Rebuild event = WeightedRandomSetEvents.beginRebuild();
+
+        LeafNode<E>[] leaves = newLeafArray(map.size());
+        int index = collectLeaves(root, leaves, 0);
+        for (int i = 0; i < index; i++) {
+            LeafNode<E> leaf = leaves[i];
+            if (leaf.version != treeVersion) {
+                leaf = newLeaf(leaf.element, (float) leaf.weight, leaf.categories);
+                map.put(leaf.element, leaf);
+                leaves[i] = leaf;
+            }
+            leaf.weight = (float) Math.min(Math.max(leaf.weight * scale, Float.MIN_VALUE), Float.MAX_VALUE);
+        }
+
+        this.scale = 1;
+        recycleInternalNodes(root);
+        this.root = buildTree(leaves, 0, index, freeInternalNodes, treeVersion);
+        this.iterationId = 0;
+        WeightedRandomSetEvents.commitRebuild(event, "renormalize", index);
+    }
+
+    /**
+     * @return The number of nodes on the longest path from the root to a leaf, 0 if the set is empty
+     */
+    @Contract(pure = true)
+    public int depth() {
+        if (root == null) return 0;
+
+        int depth = 0;
+        ArrayDeque<Node<E>> nodes = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        nodes.push(root);
+        depths.push(1);
+
+        while (!nodes.isEmpty()) {
+            Node<E> node = nodes.pop();
+            int nodeDepth = depths.pop();
+            depth = Math.max(depth, nodeDepth);
+
+            if (node instanceof InternalNode<E> internal) {
+                nodes.push(internal.left);
+                depths.push(nodeDepth + 1);
+                nodes.push(internal.right);
+                depths.push(nodeDepth + 1);
+            }
+        }
+
+        return depth;
+    }
+
     // region [Set Method Implementations]
 
     @Override
@@ -248,10 +1092,16 @@ public class WeightedRandomSet<E> implements Set<E> {
     public boolean remove(Object o) {
         LeafNode<E> node = map.get(o);
         if (node == null) return false;
+        WeightedRandomSetEvents.Operation event = WeightedRandomSetEvents.beginOperation();
+        beforeModification();
 
+        int depth = event != null ? depthOf(node) : 0;
         removeNode(node);
 
         map.remove(o);
+        recycle(node);
+
+        if (event != null) WeightedRandomSetEvents.commitOperation(event, "remove", map.size(), depth);
         return true;
     }
 
@@ -271,35 +1121,32 @@ public class WeightedRandomSet<E> implements Set<E> {
 
     @Override
     public boolean retainAll(@NotNull Collection<?> c) {
-        if (!(c instanceof Set<?>)) c = new HashSet<>(c); // Ensure c has O(1) contains
-
-        for (Map.Entry<E, LeafNode<E>> entry : this.map.entrySet()) {
-            if (!c.contains(entry.getKey())) {
-                removeNode(entry.getValue());
-            }
-        }
-
-        return this.map.keySet().retainAll(c);
+        Collection<?> retain = c instanceof Set<?> ? c : new HashSet<>(c); // Ensure c has O(1) contains
+        return removeMatching(element -> !retain.contains(element));
     }
 
     @Override
     public boolean removeAll(@NotNull Collection<?> c) {
-        if (!(c instanceof Set<?>)) c = new HashSet<>(c); // Ensure c has O(1) contains
-
-        for (Map.Entry<E, LeafNode<E>> entry : this.map.entrySet()) {
-            if (c.contains(entry.getKey())) {
-                removeNode(entry.getValue());
-            }
-        }
+        Collection<?> remove = c instanceof Set<?> ? c : new HashSet<>(c); // Ensure c has O(1) contains
+        return removeMatching(remove::contains);
+    }
 
-        return this.map.keySet().removeAll(c);
+    @Override
+    public boolean removeIf(@NotNull Predicate<? super E> filter) {
+        Objects.requireNonNull(filter);
+        return removeMatching(filter);
     }
 
     @Override
     public void clear() {
+        if (weightListener != null) weightListener.run();
         this.map.clear();
         this.root = null;
         this.iterationId = 0;
+        this.scale = 1;
+
+        // Nothing is modified in place, so snapshots can keep reading the old tree
+        this.modCount++;
     }
 
     @Override
@@ -331,6 +1178,12 @@ public class WeightedRandomSet<E> implements Set<E> {
 
     // region [Iterator]
 
+    /**
+     * Iterates in weighted random order, as if by calling {@link #pop()} until the set is empty
+     * With simultaneous iteration the iterator is a snapshot created in O(1). Later modifications copy the nodes they touch
+     * that the snapshot may still read, at most O(log n) each, so snapshots never need to be finished or closed
+     * Otherwise only one iterator can be used at a time, and modifying the set invalidates it
+     */
     @NotNull
     @Override
     public Iterator<E> iterator() {
@@ -360,8 +1213,7 @@ public class WeightedRandomSet<E> implements Set<E> {
             };
         } else if (root instanceof InternalNode<E>) {
             if (supportSimultaneousIteration) {
-                // noinspection unchecked
-                return this.deepClone().unsafeIterator();
+                return new WeightedOrderIterator(root, true);
             } else {
                 return unsafeIterator();
             }
@@ -396,13 +1248,16 @@ public class WeightedRandomSet<E> implements Set<E> {
             public E next() {
                 if (!hasNext()) throw new NoSuchElementException();
 
-                float value = ThreadLocalRandom.current().nextFloat(internalRoot.iterationWeight());
+                // The weight left to iterate can round to 0 with widely different weights, then the first unvisited leaf is taken
+                double remainingWeight = internalRoot.iterationWeight();
+                boolean firstUnvisited = remainingWeight <= 0;
+                double value = firstUnvisited ? 0 : random().nextDouble(remainingWeight);
 
                 Node<E> node = root;
 
                 while (node instanceof InternalNode<E> internal) {
-                    float leftWeight = internal.left.iterationWeight();
-                    if (!internal.iteratedLeft && (internal.iteratedRight || value < leftWeight)) {
+                    double leftWeight = internal.left.iterationWeight();
+                    if (!internal.iteratedLeft && (internal.iteratedRight || firstUnvisited || value < leftWeight)) {
                         node = internal.left;
                     } else if (!internal.iteratedRight) {
                         value -= leftWeight;
@@ -422,36 +1277,522 @@ public class WeightedRandomSet<E> implements Set<E> {
         };
     }
 
+    /**
+     * Streams the elements lazily in weighted random order, distributed as if by calling {@link #pop()}
+     * until the set is empty, but without modifying the set
+     * Setup is O(1) and each element costs O(log n), so a consumer that stops after a few elements
+     * only pays for those. Any number of these streams can be consumed at once
+     *
+     * @throws ConcurrentModificationException From the stream, if the set is modified after the stream was created
+     */
+    @Contract(pure = true)
+    public @NotNull Stream<E> weightedShuffle() {
+        if (root == null) return Stream.empty();
+
+        Iterator<E> iterator = new WeightedOrderIterator(root, false);
+        return StreamSupport.stream(Spliterators.spliterator(iterator, size(),
+            Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Splits along the left and right subtrees of the tree and visits elements in tree order rather than weighted order
+     * The spliterator is late-binding and fails fast with {@link ConcurrentModificationException}
+     */
+    @NotNull
+    @Override
+    public Spliterator<E> spliterator() {
+        return new TreeSpliterator();
+    }
+
+    private final class TreeSpliterator implements Spliterator<E> {
+        private boolean bound;
+        private int expectedModCount;
+        /**
+         * The subtree this spliterator covers, until traversal starts
+         */
+        private @Nullable Node<E> subtree;
+        private @Nullable ArrayDeque<Node<E>> stack = null;
+        private int remaining;
+
+        TreeSpliterator() {
+            this.bound = false;
+        }
+
+        private TreeSpliterator(@NotNull Node<E> subtree, int expectedModCount) {
+            this.bound = true;
+            this.expectedModCount = expectedModCount;
+            this.subtree = subtree;
+            this.remaining = leafCount(subtree);
+        }
+
+        private void bind() {
+            if (bound) return;
+            bound = true;
+            expectedModCount = modCount;
+            subtree = root;
+            remaining = subtree == null ? 0 : leafCount(subtree);
+        }
+
+        @Override
+        public @Nullable Spliterator<E> trySplit() {
+            bind();
+            if (stack != null || !(subtree instanceof InternalNode<E> internal)) return null;
+
+            subtree = internal.right;
+            remaining = leafCount(internal.right);
+            return new TreeSpliterator(internal.left, expectedModCount);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super E> action) {
+            Objects.requireNonNull(action);
+            bind();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+
+            ArrayDeque<Node<E>> stack = startTraversal();
+            while (!stack.isEmpty()) {
+                Node<E> node = stack.pop();
+                if (node instanceof InternalNode<E> internal) {
+                    stack.push(internal.right);
+                    stack.push(internal.left);
+                } else {
+                    remaining--;
+                    action.accept(((LeafNode<E>) node).element);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super E> action) {
+            Objects.requireNonNull(action);
+            bind();
+
+            ArrayDeque<Node<E>> stack = startTraversal();
+            while (!stack.isEmpty()) {
+                Node<E> node = stack.pop();
+                if (node instanceof InternalNode<E> internal) {
+                    stack.push(internal.right);
+                    stack.push(internal.left);
+                } else {
+                    remaining--;
+                    action.accept(((LeafNode<E>) node).element);
+                }
+            }
+
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+        }
+
+        private ArrayDeque<Node<E>> startTraversal() {
+            if (stack == null) {
+                stack = new ArrayDeque<>();
+                if (subtree != null) stack.push(subtree);
+                subtree = null;
+            }
+            return stack;
+        }
+
+        @Override
+        public long estimateSize() {
+            bind();
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+    }
+
+    /**
+     * Iterates in the same weighted random order as {@link #unsafeIterator()}, but keeps its progress
+     * in its own sparse map instead of in the tree, so any number of them can run at once
+     *
+     * Creating one is O(1). If `snapshot` is set the tree is shared rather than copied, and later modifications
+     * copy the O(log n) nodes they touch instead of changing them in place, leaving the old ones to the snapshot
+     * Nothing has to be released, so a snapshot that is abandoned part way through costs nothing more
+     * Otherwise the iterator reads the live tree and fails fast if the set is modified
+     */
+    private class WeightedOrderIterator implements Iterator<E> {
+        private final Node<E> root;
+        private final IdentityHashMap<Node<E>, Consumption> consumed = new IdentityHashMap<>();
+        private final boolean snapshot;
+        private final RandomGenerator random = random();
+        private final int expectedModCount = modCount;
+        private final ArrayList<InternalNode<E>> path = new ArrayList<>();
+        private int remaining;
+
+        WeightedOrderIterator(Node<E> root, boolean snapshot) {
+            this.root = root;
+            this.remaining = leafCount(root);
+            this.snapshot = snapshot;
+            if (snapshot) shareTree();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public E next() {
+            if (remaining <= 0) throw new NoSuchElementException();
+            if (!snapshot && modCount != expectedModCount) throw new ConcurrentModificationException();
+
+            double remainingWeight = remainingWeight(root);
+            double value = remainingWeight > 0 ? random.nextDouble(remainingWeight) : 0;
+
+            // Parent pointers belong to the live tree, so the path is recorded on the way down
+            path.clear();
+            Node<E> node = root;
+            while (node instanceof InternalNode<E> internal) {
+                path.add(internal);
+                boolean leftDone = isExhausted(internal.left);
+                boolean rightDone = isExhausted(internal.right);
+                double leftWeight = leftDone ? 0 : remainingWeight(internal.left);
+
+                if (rightDone || (!leftDone && value < leftWeight)) {
+                    node = internal.left;
+                } else {
+                    value -= leftWeight;
+                    node = internal.right;
+                }
+            }
+
+            LeafNode<E> leaf = (LeafNode<E>) node;
+            consumed.put(leaf, Consumption.LEAF);
+            for (InternalNode<E> parent : path) {
+                Consumption consumption = consumed.computeIfAbsent(parent, k -> new Consumption());
+                consumption.weight += leaf.weight;
+                consumption.leaves++;
+            }
+
+            remaining--;
+            return leaf.element;
+        }
+
+        private boolean isExhausted(Node<E> node) {
+            Consumption consumption = consumed.get(node);
+            return consumption != null && (consumption == Consumption.LEAF || consumption.leaves >= node.leaves);
+        }
+
+        private double remainingWeight(Node<E> node) {
+            Consumption consumption = consumed.get(node);
+            if (consumption == null) return node.weight;
+            if (consumption == Consumption.LEAF) return 0;
+            return node.weight - consumption.weight;
+        }
+    }
+
+    private static final class Consumption {
+        static final Consumption LEAF = new Consumption();
+
+        double weight = 0;
+        int leaves = 0;
+    }
+
     // endregion
 
     // region [Internal Implementation]
 
+    /**
+     * Must be called before the tree is modified in any way
+     * Nodes that snapshots may share are copied by the modification itself, see {@link #own(InternalNode)}
+     */
+    private void beforeModification() {
+        this.modCount++;
+        if (weightListener != null) weightListener.run();
+    }
+
+    /**
+     * Makes every node currently in the tree read-only, so a snapshot can keep reading them while the set is modified
+     * Nothing needs to happen if the tree is still shared from a previous snapshot
+     */
+    private void shareTree() {
+        if (root != null && root.version == treeVersion) {
+            treeVersion++;
+        }
+    }
+
+    /**
+     * @return `node`, or a writable copy of it that has replaced it in the tree if it may be shared with a snapshot
+     * Its ancestors are made writable first, so this copies at most the path from the root
+     */
+    private InternalNode<E> own(InternalNode<E> node) {
+        if (node.version == treeVersion) return node;
+
+        InternalNode<E> parent = node.parent == null ? null : own(node.parent);
+        InternalNode<E> copy = new InternalNode<>(node.weight, node.left, node.right);
+        copy.version = treeVersion;
+        copy.leaves = node.leaves;
+        copy.iteratedLeft = node.iteratedLeft;
+        copy.iteratedRight = node.iteratedRight;
+        copy.iterationWeight = node.iterationWeight;
+        if (node.categoryWeights != null) copy.categoryWeights = node.categoryWeights.clone();
+        copy.left.parent = copy;
+        copy.right.parent = copy;
+
+        replaceChild(parent, node, copy);
+        return copy;
+    }
+
+    /**
+     * {@link #own(InternalNode)} for a leaf, which is also replaced in the map
+     */
+    private LeafNode<E> own(LeafNode<E> leaf) {
+        if (leaf.version == treeVersion) return leaf;
+
+        InternalNode<E> parent = leaf.parent == null ? null : own(leaf.parent);
+        LeafNode<E> copy = newLeaf(leaf.element, (float) leaf.weight, leaf.categories);
+
+        replaceChild(parent, leaf, copy);
+        map.put(copy.element, copy);
+        return copy;
+    }
+
+    private void replaceChild(@Nullable InternalNode<E> parent, Node<E> child, Node<E> replacement) {
+        replacement.parent = parent;
+        if (parent == null) {
+            root = replacement;
+        } else if (parent.left == child) {
+            parent.left = replacement;
+        } else {
+            parent.right = replacement;
+        }
+    }
+
     private void removeNode(LeafNode<E> node) {
         this.iterationId = 0;
         if (node.parent == null || node == root) {
             root = null;
         } else {
-            update(node.parent, -node.weight, -1);
-
-            Node<E> sibling = node.parent.left == node ? node.parent.right : node.parent.left;
+            InternalNode<E> parent = own(node.parent);
+            Node<E> sibling = parent.left == node ? parent.right : parent.left;
 
-            if (node.parent.parent == null || node.parent == root) {
+            if (parent.parent == null || parent == root) {
                 root = sibling;
                 sibling.parent = null;
             } else {
-                InternalNode<E> parentParent = node.parent.parent;
-                if (parentParent.left == node.parent) {
+                InternalNode<E> parentParent = parent.parent;
+                if (parentParent.left == parent) {
                     parentParent.left = sibling;
                 } else {
                     parentParent.right = sibling;
                 }
                 sibling.parent = parentParent;
+
+                update(parentParent, -1, node.categories);
+                rebalance(parentParent);
+            }
+
+            recycle(parent);
+        }
+    }
+
+    private LeafNode<E> newLeaf(E element, float weight, int categories) {
+        LeafNode<E> leaf = freeLeaves.poll();
+        if (leaf == null) {
+            leaf = new LeafNode<>(element, weight, categories);
+            leaf.version = treeVersion;
+            return leaf;
+        }
+
+        leaf.version = treeVersion;
+        leaf.element = element;
+        leaf.weight = weight;
+        leaf.categories = categories;
+        return leaf;
+    }
+
+    private InternalNode<E> newInternalNode(LeafNode<E> left, LeafNode<E> right) {
+        InternalNode<E> node = freeInternalNodes.poll();
+        if (node == null) {
+            node = new InternalNode<>(left.weight, left, right);
+            node.version = treeVersion;
+            return node;
+        }
+
+        node.version = treeVersion;
+        node.weight = left.weight;
+        node.left = left;
+        node.right = right;
+        return node;
+    }
+
+    /**
+     * Returns a node which is no longer reachable from the tree or the map to the pool
+     * Nodes from older versions may still be read by snapshots, so only nodes created since the last snapshot are reused
+     */
+    @SuppressWarnings("DataFlowIssue")
+    private void recycle(Node<E> node) {
+        if (nodePoolSize == 0 || node.version != treeVersion) return;
+
+        if (node instanceof LeafNode<E> leaf) {
+            if (freeLeaves.size() >= nodePoolSize) return;
+            leaf.parent = null;
+            leaf.element = null;
+            leaf.categories = 0;
+            freeLeaves.push(leaf);
+        } else if (node instanceof InternalNode<E> internal) {
+            if (freeInternalNodes.size() >= nodePoolSize) return;
+            internal.parent = null;
+            internal.leaves = 0;
+            internal.left = null;
+            internal.right = null;
+            internal.iteratedLeft = false;
+            internal.iteratedRight = false;
+            internal.iterationWeight = -1;
+            if (internal.categoryWeights != null) Arrays.fill(internal.categoryWeights, 0);
+            freeInternalNodes.push(internal);
+        }
+    }
+
+    /**
+     * Removes every element matching `filter`
+     * The filter is tested against every element before anything is removed, so the set is left unchanged if it throws
+     * If more than {@link #BULK_REBUILD_FRACTION} of the elements are removed, the remaining ones are rebuilt
+     * into a balanced tree in O(n) instead of being spliced out one at a time
+     */
+    private boolean removeMatching(Predicate<? super E> filter) {
+        if (root == null) return false;
+
+        // Tested in tree order rather than map order, which can differ between runs, so the resulting tree is reproducible
+        LeafNode<E>[] leaves = newLeafArray(map.size());
+        int size = collectLeaves(root, leaves, 0);
+        List<LeafNode<E>> removed = null;
+        int kept = 0;
+
+        for (int i = 0; i < size; i++) {
+            LeafNode<E> leaf = leaves[i];
+            if (filter.test(leaf.element)) {
+                if (removed == null) removed = new ArrayList<>();
+                removed.add(leaf);
+            } else {
+                leaves[kept++] = leaf;
+            }
+        }
+
+        if (removed == null) return false;
+
+        beforeModification();
+        for (LeafNode<E> leaf : removed) {
+            map.remove(leaf.element);
+        }
+
+        if (removed.size() > size * BULK_REBUILD_FRACTION) {
+            WeightedRandomSetEvents.Rebuild event = WeightedRandomSetEvents.beginRebuild();
+            recycleInternalNodes(root);
+            this.root = buildTree(leaves, 0, kept, freeInternalNodes, treeVersion);
+            this.iterationId = 0;
+            WeightedRandomSetEvents.commitRebuild(event, "bulk remove", kept);
+        } else {
+            for (LeafNode<E> leaf : removed) {
+                removeNode(leaf);
+            }
+        }
+
+        for (LeafNode<E> leaf : removed) {
+            recycle(leaf);
+        }
+        return true;
+    }
+
+    /**
+     * Walks from `node` up to the root and rebuilds the highest subtree that has become unbalanced
+     * Only the ancestors of a changed leaf can become unbalanced, so this keeps the whole tree within the bound
+     */
+    private void rebalance(@Nullable InternalNode<E> node) {
+        InternalNode<E> unbalanced = null;
+
+        for (; node != null; node = node.parent) {
+            int largest = Math.max(leafCount(node.left), leafCount(node.right));
+            if (largest > BALANCE_FACTOR * node.leaves) {
+                unbalanced = node;
+            }
+        }
+
+        if (unbalanced != null) {
+            rebuildSubtree(unbalanced);
+        }
+    }
+
+    private void rebuildSubtree(InternalNode<E> subtree) {
+        WeightedRandomSetEvents.Rebuild event = WeightedRandomSetEvents.beginRebuild();
+        LeafNode<E>[] leaves = newLeafArray(subtree.leaves);
+        int count = collectLeaves(subtree, leaves, 0);
+
+        InternalNode<E> parent = subtree.parent;
+        recycleInternalNodes(subtree);
+        Node<E> rebuilt = buildTree(leaves, 0, count, freeInternalNodes, treeVersion);
+        assert rebuilt != null;
+
+        if (parent == null) {
+            root = rebuilt;
+        } else {
+            if (parent.left == subtree) {
+                parent.left = rebuilt;
+            } else {
+                parent.right = rebuilt;
+            }
+            rebuilt.parent = parent;
+
+            // Summing in a different order can round differently
+            update(parent, 0, 0);
+        }
+
+        this.iterationId = 0;
+        WeightedRandomSetEvents.commitRebuild(event, "rebalance", count);
+    }
+
+    /**
+     * Writes the leaves under `node` into `out` starting at `index`, left to right
+     *
+     * @return The index after the last leaf written
+     */
+    private static <E> int collectLeaves(Node<E> node, LeafNode<E>[] out, int index) {
+        ArrayDeque<Node<E>> stack = new ArrayDeque<>();
+        stack.push(node);
+
+        while (!stack.isEmpty()) {
+            Node<E> current = stack.pop();
+            if (current instanceof InternalNode<E> internal) {
+                stack.push(internal.right);
+                stack.push(internal.left);
+            } else {
+                out[index++] = (LeafNode<E>) current;
             }
         }
+
+        return index;
+    }
+
+    /**
+     * Returns every internal node under `node` to the pool, once its leaves have been collected for a rebuild
+     */
+    private void recycleInternalNodes(@Nullable Node<E> node) {
+        if (nodePoolSize == 0 || !(node instanceof InternalNode<E>)) return;
+
+        ArrayDeque<InternalNode<E>> stack = new ArrayDeque<>();
+        stack.push((InternalNode<E>) node);
+
+        while (!stack.isEmpty() && freeInternalNodes.size() < nodePoolSize) {
+            InternalNode<E> current = stack.pop();
+            // Everything under a shared node is shared too
+            if (current.version != treeVersion) continue;
+
+            if (current.left instanceof InternalNode<E> left) stack.push(left);
+            if (current.right instanceof InternalNode<E> right) stack.push(right);
+            recycle(current);
+        }
+    }
+
+    private static int leafCount(Node<?> node) {
+        return node instanceof InternalNode<?> ? node.leaves : 1;
     }
 
     @Contract(pure = true)
-    private @Flow(sourceIsContainer = true) @Nullable LeafNode<E> get(float value) {
+    private @Flow(sourceIsContainer = true) @Nullable LeafNode<E> get(double value) {
         if (root == null) return null;
 
         Node<E> node = root;
@@ -466,14 +1807,152 @@ public class WeightedRandomSet<E> implements Set<E> {
         }
 
         if (node instanceof LeafNode<E> leaf) {
+            if (WeightedRandomSetEvents.ENABLED && value >= leaf.weight) {
+                WeightedRandomSetEvents.roundingMiss(value - leaf.weight);
+            }
             return leaf;
         }
 
         return null;
     }
 
-    private void insert(@NotNull Node<E> leaf, @NotNull Node<E> newNode) {
-        InternalNode<E> parent = new InternalNode<>(leaf.weight, leaf, newNode);
+    /**
+     * @return The number of nodes from the root to `node`, only used for instrumentation
+     */
+    private static int depthOf(Node<?> node) {
+        int depth = 1;
+        for (Node<?> parent = node.parent; parent != null; parent = parent.parent) {
+            depth++;
+        }
+        return depth;
+    }
+
+    private RandomGenerator random() {
+        return randomGenerator != null ? randomGenerator : ThreadLocalRandom.current();
+    }
+
+    /**
+     * Draws `n` samples by sorting `n` random values and descending the tree once for all of them
+     * Subtrees which no value falls into are never visited
+     */
+    private void sampleBatch(RandomGenerator random, int n, ObjIntConsumer<E> sink) {
+        assert root != null;
+
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = random.nextDouble(root.weight);
+        }
+        Arrays.sort(values);
+
+        sampleBatch(root, values, 0, n, 0, sink);
+    }
+
+    private void sampleBatch(Node<E> node, double[] values, int from, int to, double offset, ObjIntConsumer<E> sink) {
+        while (node instanceof InternalNode<E> internal) {
+            double split = offset + internal.left.weight;
+
+            // First index whose value belongs to the right subtree
+            int low = from;
+            int high = to;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < split) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            if (low > from) {
+                if (low < to) sampleBatch(internal.right, values, low, to, split, sink);
+                to = low;
+                node = internal.left;
+            } else {
+                offset = split;
+                node = internal.right;
+            }
+        }
+
+        if (node instanceof LeafNode<E> leaf) {
+            sink.accept(leaf.element, to - from);
+        }
+    }
+
+    private void sampleCounts(RandomGenerator random, Node<E> node, long n, ObjLongConsumer<? super E> action) {
+        while (node instanceof InternalNode<E> internal) {
+            double leftWeight = internal.left.weight;
+            double probability = leftWeight / (leftWeight + internal.right.weight);
+            long left = RandomDistributions.binomial(random, n, probability);
+
+            if (left == 0) {
+                node = internal.right;
+            } else if (left == n) {
+                node = internal.left;
+            } else {
+                sampleCounts(random, internal.left, left, action);
+                n -= left;
+                node = internal.right;
+            }
+        }
+
+        if (node instanceof LeafNode<E> leaf) {
+            action.accept(leaf.element, n);
+        }
+    }
+
+    /**
+     * Builds a perfectly balanced tree over `leaves[from, to)` bottom-up, the returned root has no parent
+     */
+    private static <E> @Nullable Node<E> buildTree(LeafNode<E>[] leaves, int from, int to) {
+        return buildTree(leaves, from, to, null, 0);
+    }
+
+    /**
+     * @param pool Internal nodes to reuse before allocating new ones
+     * @param version The tree version the new internal nodes belong to
+     */
+    private static <E> @Nullable Node<E> buildTree(LeafNode<E>[] leaves, int from, int to,
+                                                   @Nullable ArrayDeque<InternalNode<E>> pool, int version) {
+        if (from >= to) return null;
+
+        if (to - from == 1) {
+            LeafNode<E> leaf = leaves[from];
+            leaf.parent = null;
+            return leaf;
+        }
+
+        int mid = (from + to) >>> 1;
+        Node<E> left = buildTree(leaves, from, mid, pool, version);
+        Node<E> right = buildTree(leaves, mid, to, pool, version);
+        assert left != null && right != null;
+
+        InternalNode<E> node = pool == null ? null : pool.poll();
+        if (node == null) {
+            node = new InternalNode<>(left.weight + right.weight, left, right);
+        } else {
+            node.weight = left.weight + right.weight;
+            node.left = left;
+            node.right = right;
+        }
+        node.version = version;
+        node.addCategoryWeights(left);
+        node.addCategoryWeights(right);
+        node.leaves = to - from;
+        left.parent = node;
+        right.parent = node;
+        return node;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> LeafNode<E>[] newLeafArray(int size) {
+        return (LeafNode<E>[]) new LeafNode<?>[size];
+    }
+
+    private void insert(@NotNull LeafNode<E> leaf, @NotNull LeafNode<E> newNode) {
+        if (leaf.parent != null) own(leaf.parent);
+
+        InternalNode<E> parent = newInternalNode(leaf, newNode);
+        parent.addCategoryWeights(leaf);
         parent.leaves = 1;
         parent.parent = leaf.parent;
 
@@ -488,13 +1967,43 @@ public class WeightedRandomSet<E> implements Set<E> {
         leaf.parent = parent;
         newNode.parent = parent;
 
-        update(parent, newNode.weight, 1);
+        update(parent, 1, newNode.categories);
+    }
+
+    private void updateWeight(LeafNode<E> leaf, float weight) {
+        leaf = own(leaf);
+        double deltaWeight = weight - leaf.weight;
+        leaf.weight = weight;
+
+        InternalNode<E> parent = leaf.parent;
+        if (parent == null) return;
+
+        update(parent, 0, leaf.categories);
+
+        // In-progress iterators cache the remaining weight of partially iterated subtrees,
+        // which only includes this leaf if it hasn't been iterated yet
+        boolean iterated = parent.left == leaf ? parent.iteratedLeft : parent.iteratedRight;
+        if (!iterated) {
+            for (InternalNode<E> node = parent; node != null; node = node.parent) {
+                if (node.iterationWeight >= 0) {
+                    node.iterationWeight = Math.max(0, node.iterationWeight + deltaWeight);
+                }
+            }
+        }
     }
 
-    private void update(Node<E> node, float newWeight, int newLeaves) {
+    /**
+     * Recomputes the sums of `node` and its ancestors after one of its children changed
+     * Sums are rebuilt from the children instead of adjusted by a delta, so rounding errors can't accumulate
+     * however many times the set is modified, and a sum is always exactly the sum of its two children
+     *
+     * @param categories The categories whose sums changed
+     */
+    private void update(@Nullable InternalNode<E> node, int newLeaves, int categories) {
         while (node != null) {
-            node.weight += newWeight;
+            node.weight = node.left.weight + node.right.weight;
             node.leaves += newLeaves;
+            if (categories != 0) node.recomputeCategoryWeights(categories);
             node = node.parent;
         }
     }
@@ -0,0 +1,120 @@
+package net.moulberry.utils.probability;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * JFR events for {@link WeightedRandomSet}
+ * Events are only created if the JVM is started with -Dnet.moulberry.utils.probability.jfr=true, and only recorded
+ * if they are enabled in the recording settings. Without the property every call site is behind a static final false,
+ * so the JIT removes them entirely. With the property, events are only allocated while a recording has them enabled
+ */
+final class WeightedRandomSetEvents {
+
+    static final boolean ENABLED = Boolean.getBoolean("net.moulberry.utils.probability.jfr");
+
+    private static final EventType OPERATION_TYPE = ENABLED ? EventType.getEventType(Operation.class) : null;
+    private static final EventType REBUILD_TYPE = ENABLED ? EventType.getEventType(Rebuild.class) : null;
+    private static final EventType ROUNDING_MISS_TYPE = ENABLED ? EventType.getEventType(RoundingMiss.class) : null;
+
+    private WeightedRandomSetEvents() {}
+
+    @Name("net.moulberry.utils.WeightedRandomSet.Operation")
+    @Label("Weighted Random Set Operation")
+    @Description("A single sample, pop, add or remove")
+    @Category({"Moulberry Utils", "Weighted Random Set"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Operation extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Size")
+        @Description("The number of elements after the operation")
+        int size;
+
+        @Label("Depth")
+        @Description("The number of nodes from the root to the leaf that was sampled, added or removed")
+        int depth;
+    }
+
+    @Name("net.moulberry.utils.WeightedRandomSet.Rebuild")
+    @Label("Weighted Random Set Rebuild")
+    @Description("An O(n) copy or rebuild of the whole tree or one of its subtrees")
+    @Category({"Moulberry Utils", "Weighted Random Set"})
+    @StackTrace(false)
+    static final class Rebuild extends Event {
+        @Label("Reason")
+        String reason;
+
+        @Label("Leaves")
+        int leaves;
+    }
+
+    @Name("net.moulberry.utils.WeightedRandomSet.RoundingMiss")
+    @Label("Weighted Random Set Rounding Miss")
+    @Description("A sample landed past the end of the last leaf because of rounding and was clamped to it")
+    @Category({"Moulberry Utils", "Weighted Random Set"})
+    @StackTrace(false)
+    static final class RoundingMiss extends Event {
+        @Label("Overshoot")
+        double overshoot;
+    }
+
+    static @Nullable Operation beginOperation() {
+        if (!ENABLED || !OPERATION_TYPE.isEnabled()) return null;
+
+        Operation event = new Operation();
+        event.begin();
+        return event;
+    }
+
+    static void commitOperation(@Nullable Operation event, String operation, int size, int depth) {
+        if (event == null) return;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.size = size;
+            event.depth = depth;
+            event.commit();
+        }
+    }
+
+    static @Nullable Rebuild beginRebuild() {
+        if (!ENABLED || !REBUILD_TYPE.isEnabled()) return null;
+
+        Rebuild event = new Rebuild();
+        event.begin();
+        return event;
+    }
+
+    static void commitRebuild(@Nullable Rebuild event, String reason, int leaves) {
+        if (event == null) return;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.reason = reason;
+            event.leaves = leaves;
+            event.commit();
+        }
+    }
+
+    static void roundingMiss(double overshoot) {
+        if (!ENABLED || !ROUNDING_MISS_TYPE.isEnabled()) return;
+
+        RoundingMiss event = new RoundingMiss();
+        if (event.shouldCommit()) {
+            event.overshoot = overshoot;
+            event.commit();
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package net.moulberry.utils;
+
+import com.google.common.collect.testing.*;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+import net.moulberry.utils.probability.CompactWeightedRandomSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CompactWeightedRandomSetTest {
+
+    @Test
+    public void guavaSetTest() {
+        TestSuite test = SetTestSuiteBuilder.using(new TestStringSetGenerator() {
+            @Override
+            protected Set<String> create(String[] elements) {
+                CompactWeightedRandomSet<String> set = new CompactWeightedRandomSet<>();
+                set.addAll(Arrays.asList(elements));
+                return set;
+            }
+        }).named("compactRandomSet")
+          .withFeatures(
+                  CollectionFeature.SUPPORTS_ADD,
+                  CollectionFeature.SUPPORTS_REMOVE,
+                  CollectionFeature.SUPPORTS_ITERATOR_REMOVE,
+                  CollectionSize.ANY
+          ).createTestSuite();
+
+        TestRunner testRunner = new TestRunner(System.err);
+        TestResult result = testRunner.doRun(test);
+
+        assert result.wasSuccessful();
+    }
+
+    @Test
+    public void emptyTree() {
+        CompactWeightedRandomSet<Integer> set = new CompactWeightedRandomSet<>();
+        assertThat(set.sample()).isNull();
+        assertThat(set.pop()).isNull();
+    }
+
+    @Test
+    public void popTest() {
+        CompactWeightedRandomSet<Integer> set = new CompactWeightedRandomSet<>(0);
+
+        Set<Integer> values = new HashSet<>();
+        for (int i=0; i<100; i++) {
+            values.add(i);
+            set.add(i, 1);
+        }
+
+        while (!values.isEmpty()) {
+            Integer popped = set.pop();
+
+            assertThat(popped).isNotNull();
+            assertThat(popped).isIn(values);
+            assertThat(set.contains(popped)).isFalse();
+
+            values.remove(popped);
+
+            assertThat(set.size()).isEqualTo(values.size());
+            assertThat(set.totalWeight()).isEqualTo(values.size());
+        }
+
+        assertThat(set.pop()).isNull();
+    }
+
+    @Test
+    public void churnTest() {
+        CompactWeightedRandomSet<Integer> set = new CompactWeightedRandomSet<>();
+        Map<Integer, Float> expected = new HashMap<>();
+
+        Random random = new Random(1337);
+        for (int i=0; i<10_000; i++) {
+            int element = random.nextInt(500);
+            if (random.nextBoolean()) {
+                float weight = 1 + random.nextInt(10);
+                assertThat(set.add(element, weight)).isEqualTo(expected.putIfAbsent(element, weight) == null);
+            } else {
+                assertThat(set.remove(element)).isEqualTo(expected.remove(element) != null);
+            }
+        }
+
+        assertThat(set).isEqualTo(expected.keySet());
+
+        float totalWeight = 0;
+        for (Map.Entry<Integer, Float> entry : expected.entrySet()) {
+            assertThat(set.getWeight(entry.getKey())).isEqualTo(entry.getValue());
+            totalWeight += entry.getValue();
+        }
+        assertThat(set.totalWeight()).isEqualTo(totalWeight);
+    }
+
+    @Test
+    public void fairnessTest() {
+        CompactWeightedRandomSet<Integer> set = new CompactWeightedRandomSet<>();
+
+        final float totalWeight = 100;
+        set.add(1, 17);
+        set.add(1337, 32);
+        set.add(64, 51);
+
+        Map<Integer, Integer> counts = new HashMap<>();
+
+        final int trials = 1_000_000;
+        for (int i=0; i<trials; i++) {
+            Integer sample = set.sample();
+            assertThat(sample).isNotNull();
+            counts.merge(sample, 1, Integer::sum);
+        }
+
+        assertThat(counts.get(1)/(float)trials).isWithin(0.01f).of(17/totalWeight);
+        assertThat(counts.get(1337)/(float)trials).isWithin(0.01f).of(32/totalWeight);
+        assertThat(counts.get(64)/(float)trials).isWithin(0.01f).of(51/totalWeight);
+    }
+
+}
@@ -0,0 +1,150 @@
+package net.moulberry.utils;
+
+import com.google.common.collect.testing.*;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+import net.moulberry.utils.probability.ConcurrentWeightedRandomSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ConcurrentWeightedRandomSetTest {
+
+    @Test
+    public void guavaSetTest() {
+        TestSuite test = SetTestSuiteBuilder.using(new TestStringSetGenerator() {
+            @Override
+            protected Set<String> create(String[] elements) {
+                ConcurrentWeightedRandomSet<String> set = new ConcurrentWeightedRandomSet<>();
+                set.addAll(Arrays.asList(elements));
+                return set;
+            }
+        }).named("concurrentRandomSet")
+          .withFeatures(
+                  CollectionFeature.SUPPORTS_ADD,
+                  CollectionFeature.SUPPORTS_REMOVE,
+                  CollectionFeature.SUPPORTS_ITERATOR_REMOVE,
+                  CollectionSize.ANY
+          ).createTestSuite();
+
+        TestRunner testRunner = new TestRunner(System.err);
+        TestResult result = testRunner.doRun(test);
+
+        assert result.wasSuccessful();
+    }
+
+    @Test
+    public void popTest() {
+        ConcurrentWeightedRandomSet<Integer> set = new ConcurrentWeightedRandomSet<>();
+
+        Set<Integer> values = new HashSet<>();
+        for (int i=0; i<100; i++) {
+            values.add(i);
+            set.add(i, 1);
+        }
+
+        while (!values.isEmpty()) {
+            Integer popped = set.pop();
+
+            assertThat(popped).isNotNull();
+            assertThat(popped).isIn(values);
+            assertThat(set.contains(popped)).isFalse();
+
+            values.remove(popped);
+
+            assertThat(set.size()).isEqualTo(values.size());
+            assertThat(set.totalWeight()).isEqualTo(values.size());
+        }
+
+        assertThat(set.pop()).isNull();
+        assertThat(set.sample()).isNull();
+    }
+
+    @Test
+    public void snapshotIterationTest() {
+        ConcurrentWeightedRandomSet<Integer> set = new ConcurrentWeightedRandomSet<>();
+        for (int i=0; i<10; i++) {
+            set.add(i, 1);
+        }
+
+        Set<Integer> iterated = new HashSet<>();
+        for (int element : set) {
+            iterated.add(element);
+            set.remove(element);
+            set.add(element + 100, 1);
+        }
+
+        assertThat(iterated).hasSize(10);
+        assertThat(set).hasSize(10);
+    }
+
+    @Test
+    public void concurrentSampleTest() throws Exception {
+        ConcurrentWeightedRandomSet<Integer> set = new ConcurrentWeightedRandomSet<>();
+        set.add(-1, 1);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> readers = new ArrayList<>();
+
+        for (int i=0; i<3; i++) {
+            readers.add(executor.submit(() -> {
+                while (running.get()) {
+                    Integer sample = set.sample();
+                    assertThat(sample).isNotNull();
+                    assertThat(sample).isAtLeast(-1);
+                    assertThat(sample).isLessThan(1000);
+                }
+            }));
+        }
+
+        Random random = new Random(1337);
+        for (int i=0; i<100_000; i++) {
+            int element = random.nextInt(1000);
+            if (random.nextBoolean()) {
+                set.add(element, 1 + random.nextInt(5));
+            } else {
+                set.remove(element);
+            }
+        }
+
+        running.set(false);
+        for (Future<?> reader : readers) {
+            reader.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertThat(set.contains(-1)).isTrue();
+    }
+
+    @Test
+    public void fairnessTest() {
+        ConcurrentWeightedRandomSet<Integer> set = new ConcurrentWeightedRandomSet<>();
+
+        final float totalWeight = 100;
+        set.add(1, 17);
+        set.add(1337, 32);
+        set.add(64, 51);
+
+        Map<Integer, Integer> counts = new HashMap<>();
+
+        final int trials = 1_000_000;
+        for (int i=0; i<trials; i++) {
+            Integer sample = set.sample();
+            assertThat(sample).isNotNull();
+            counts.merge(sample, 1, Integer::sum);
+        }
+
+        assertThat(counts.get(1)/(float)trials).isWithin(0.01f).of(17/totalWeight);
+        assertThat(counts.get(1337)/(float)trials).isWithin(0.01f).of(32/totalWeight);
+        assertThat(counts.get(64)/(float)trials).isWithin(0.01f).of(51/totalWeight);
+    }
+
+}
@@ -0,0 +1,157 @@
+package net.moulberry.utils;
+
+import net.moulberry.utils.probability.GroupedWeightedRandomSet;
+import net.moulberry.utils.probability.WeightedRandomSet;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class GroupedWeightedRandomSetTest {
+
+    @Test
+    public void emptyTest() {
+        GroupedWeightedRandomSet<String, Integer> set = new GroupedWeightedRandomSet<>();
+        assertThat(set.isEmpty()).isTrue();
+        assertThat(set.sample()).isNull();
+        assertThat(set.pop()).isNull();
+
+        // Empty groups are never sampled
+        set.group("a");
+        set.add("b", 1, 5);
+        set.remove("b", 1);
+        assertThat(set.isEmpty()).isTrue();
+        assertThat(set.sample()).isNull();
+        assertThat(set.totalWeight()).isEqualTo(0f);
+        assertThat(set.groups()).containsExactly("a", "b");
+    }
+
+    @Test
+    public void groupWeightTest() {
+        GroupedWeightedRandomSet<String, Integer> set = new GroupedWeightedRandomSet<>();
+        WeightedRandomSet<Integer> a = set.group("a");
+        a.add(0, 1);
+        a.add(1, 2);
+        set.add("b", 2, 4);
+        assertThat(set.totalWeight()).isEqualTo(7f);
+
+        // Changes made directly to a group set are picked up
+        a.setWeight(0, 3);
+        assertThat(set.groupWeight("a")).isEqualTo(5f);
+        assertThat(set.totalWeight()).isEqualTo(9f);
+
+        a.scaleAll(2);
+        assertThat(set.totalWeight()).isEqualTo(14f);
+
+        a.remove(1);
+        assertThat(set.totalWeight()).isEqualTo(10f);
+
+        a.clear();
+        assertThat(set.totalWeight()).isEqualTo(4f);
+        for (int i=0; i<100; i++) {
+            assertThat(set.sampleGroup()).isEqualTo("b");
+            assertThat(set.sample()).isEqualTo(2);
+        }
+
+        a.add(3, 4);
+        assertThat(set.totalWeight()).isEqualTo(8f);
+        assertThat(set.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void groupWeightRangeTest() {
+        // A group whose total rounds to 0 still has elements to sample
+        GroupedWeightedRandomSet<String, Integer> tiny = new GroupedWeightedRandomSet<>();
+        tiny.add("a", 0, Float.MIN_VALUE);
+        tiny.group("a").scaleAll(0.5f);
+        assertThat(tiny.groupWeight("a")).isEqualTo(0f);
+        assertThat(tiny.isEmpty()).isFalse();
+        assertThat(tiny.sample()).isEqualTo(0);
+
+        // A group whose total overflows a float doesn't take over the whole set
+        GroupedWeightedRandomSet<String, Integer> huge = new GroupedWeightedRandomSet<>();
+        huge.add("a", 0, Float.MAX_VALUE);
+        huge.add("a", 1, Float.MAX_VALUE);
+        huge.add("b", 2, Float.MAX_VALUE);
+
+        Random random = new Random(0);
+        final int trials = 100_000;
+        int samplesB = 0;
+        for (int i=0; i<trials; i++) {
+            if (huge.sampleGroup(random).equals("b")) samplesB++;
+        }
+        assertThat(samplesB/(float)trials).isWithin(0.01f).of(0.5f);
+    }
+
+    @Test
+    public void sampleTest() {
+        GroupedWeightedRandomSet<Integer, Integer> set = new GroupedWeightedRandomSet<>();
+        float total = 0;
+        for (int i=0; i<20; i++) {
+            set.add(i % 4, i, 1 + i % 3);
+            total += 1 + i % 3;
+        }
+        // Change a group after it has already been synced
+        set.sample();
+        set.group(0).setWeight(0, 10);
+        total += 9;
+
+        Random random = new Random(0);
+        final int trials = 400_000;
+        int[] counts = new int[20];
+        for (int i=0; i<trials; i++) {
+            counts[set.sample(random)]++;
+        }
+
+        // Every element is sampled in proportion to its weight across all groups
+        for (int i=0; i<20; i++) {
+            float expected = set.group(i % 4).getWeight(i) / total;
+            assertThat(counts[i]/(float)trials).isWithin(0.005f).of(expected);
+        }
+    }
+
+    @Test
+    public void popTest() {
+        GroupedWeightedRandomSet<String, Integer> set = new GroupedWeightedRandomSet<>();
+        for (int i=0; i<100; i++) {
+            set.add(i % 2 == 0 ? "even" : "odd", i, 1 + i % 7);
+        }
+
+        Set<Integer> popped = new HashSet<>();
+        for (int i=0; i<100; i++) {
+            assertThat(popped.add(set.pop())).isTrue();
+        }
+        assertThat(set.pop()).isNull();
+        assertThat(set.isEmpty()).isTrue();
+        assertThat(popped).hasSize(100);
+    }
+
+    @Test
+    public void ownershipTest() {
+        GroupedWeightedRandomSet<String, Integer> set = new GroupedWeightedRandomSet<>();
+        WeightedRandomSet<Integer> adopted = new WeightedRandomSet<>();
+        adopted.add(0, 3);
+        set.putGroup("a", adopted);
+        assertThat(set.getGroup("a")).isSameInstanceAs(adopted);
+        assertThat(set.totalWeight()).isEqualTo(3f);
+
+        GroupedWeightedRandomSet<String, Integer> other = new GroupedWeightedRandomSet<>();
+        Assertions.assertThrows(IllegalStateException.class, () -> other.putGroup("a", adopted));
+
+        // A removed group no longer affects the set it was removed from
+        assertThat(set.removeGroup("a")).isSameInstanceAs(adopted);
+        adopted.add(1, 5);
+        assertThat(set.totalWeight()).isEqualTo(0f);
+        assertThat(set.getGroup("a")).isNull();
+
+        other.putGroup("a", adopted);
+        assertThat(other.totalWeight()).isEqualTo(8f);
+
+        // Copies don't belong to a group
+        set.putGroup("b", adopted.deepClone());
+        assertThat(set.totalWeight()).isEqualTo(8f);
+    }
+
+}
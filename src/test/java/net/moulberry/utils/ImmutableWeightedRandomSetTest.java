@@ -0,0 +1,127 @@
+package net.moulberry.utils;
+
+import com.google.common.collect.testing.*;
+import com.google.common.collect.testing.features.CollectionSize;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+import junit.textui.TestRunner;
+import net.moulberry.utils.probability.ImmutableWeightedRandomSet;
+import net.moulberry.utils.probability.WeightedRandomSet;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ImmutableWeightedRandomSetTest {
+
+    @Test
+    public void guavaSetTest() {
+        TestSuite test = SetTestSuiteBuilder.using(new TestStringSetGenerator() {
+            @Override
+            protected Set<String> create(String[] elements) {
+                WeightedRandomSet<String> set = new WeightedRandomSet<>();
+                set.addAll(Arrays.asList(elements));
+                return set.freeze();
+            }
+        }).named("immutableRandomSet")
+          .withFeatures(
+                  CollectionSize.ANY
+          ).createTestSuite();
+
+        TestRunner testRunner = new TestRunner(System.err);
+        TestResult result = testRunner.doRun(test);
+
+        assert result.wasSuccessful();
+    }
+
+    @Test
+    public void emptyTest() {
+        ImmutableWeightedRandomSet<Integer> set = new WeightedRandomSet<Integer>().freeze();
+        assertThat(set).isEmpty();
+        assertThat(set.sample()).isNull();
+        assertThat(set.totalWeight()).isEqualTo(0f);
+    }
+
+    @Test
+    public void freezeTest() {
+        WeightedRandomSet<Integer> source = new WeightedRandomSet<>();
+        for (int i=0; i<1000; i++) {
+            source.add(i, 1 + i % 5);
+        }
+        source.scaleAll(2);
+
+        ImmutableWeightedRandomSet<Integer> frozen = source.freeze();
+        source.remove(0);
+        source.setWeight(1, 100);
+
+        assertThat(frozen).hasSize(1000);
+        assertThat(frozen.contains(0)).isTrue();
+        assertThat(frozen.contains(1000)).isFalse();
+        assertThat(frozen.getWeight(1)).isEqualTo(4f);
+        assertThat(frozen.getWeight(1000)).isEqualTo(0f);
+        assertThat(frozen.totalWeight()).isEqualTo(6000f);
+
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> frozen.add(1000));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> frozen.remove(5));
+        Assertions.assertThrows(UnsupportedOperationException.class, frozen::clear);
+    }
+
+    @Test
+    public void sampleTest() {
+        // Every size up to a few levels of the layout, including incomplete last levels
+        for (int size=1; size<=70; size++) {
+            // Built with of() so the frozen order is the insertion order
+            Map<Integer, Float> weights = new LinkedHashMap<>();
+            double[] cumulative = new double[size];
+            double total = 0;
+            for (int i=0; i<size; i++) {
+                weights.put(i, (float) (1 + (i * 7) % 5));
+                total += 1 + (i * 7) % 5;
+                cumulative[i] = total;
+            }
+            ImmutableWeightedRandomSet<Integer> frozen = WeightedRandomSet.of(weights).freeze();
+
+            // The search must pick exactly the same element as a linear scan of the same random value
+            Random random = new Random(size);
+            Random expectedRandom = new Random(size);
+            for (int i=0; i<10_000; i++) {
+                double value = expectedRandom.nextDouble(total);
+                int expected = 0;
+                while (expected < size - 1 && cumulative[expected] <= value) expected++;
+
+                assertThat(frozen.sample(random)).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentSampleTest() throws InterruptedException {
+        WeightedRandomSet<Integer> source = new WeightedRandomSet<>();
+        source.add(0, 1);
+        source.add(1, 3);
+        ImmutableWeightedRandomSet<Integer> frozen = source.freeze();
+
+        final int trials = 200_000;
+        int[] counts = new int[4];
+        Thread[] threads = new Thread[4];
+        for (int t=0; t<threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i=0; i<trials; i++) {
+                    if (frozen.sample() == 1) counts[thread]++;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int count : counts) {
+            assertThat(count/(float)trials).isWithin(0.01f).of(0.75f);
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package net.moulberry.utils;
+
+import net.moulberry.utils.probability.MappedWeightedSampler;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class MappedWeightedSamplerTest {
+
+    @Test
+    public void sampleTest() throws IOException {
+        Path path = Files.createTempFile("sampler", ".bin");
+        try (MappedWeightedSampler sampler = MappedWeightedSampler.create(path, 1000)) {
+            assertThat(sampler.capacity()).isEqualTo(1024L);
+            assertThat(sampler.isEmpty()).isTrue();
+            Assertions.assertThrows(NoSuchElementException.class, sampler::sample);
+
+            sampler.setWeight(3, 1);
+            sampler.setWeight(500, 2);
+            sampler.setWeight(1023, 1);
+            assertThat(sampler.totalWeight()).isEqualTo(4.0);
+
+            // Sample 500 with probability 2/4
+            int samples500 = 0;
+            final int trials = 1_000_000;
+            for (int i=0; i<trials; i++) {
+                long id = sampler.sample();
+                assertThat(id == 3 || id == 500 || id == 1023).isTrue();
+                if (id == 500) samples500++;
+            }
+            assertThat(samples500/(float)trials).isWithin(0.01f).of(0.5f);
+
+            sampler.setWeight(500, 0);
+            sampler.addWeight(3, 2);
+            assertThat(sampler.getWeight(3)).isEqualTo(3.0);
+            assertThat(sampler.totalWeight()).isEqualTo(4.0);
+            for (int i=0; i<10_000; i++) {
+                assertThat(sampler.sample()).isNotEqualTo(500L);
+            }
+
+            Assertions.assertThrows(IndexOutOfBoundsException.class, () -> sampler.setWeight(1024, 1));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> sampler.setWeight(0, -1));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void reopenTest() throws IOException {
+        Path path = Files.createTempFile("sampler", ".bin");
+        try {
+            try (MappedWeightedSampler sampler = MappedWeightedSampler.create(path, 1 << 16)) {
+                for (int i=0; i<1 << 16; i+=7) {
+                    sampler.setWeight(i, 1 + i % 5);
+                }
+            }
+
+            try (MappedWeightedSampler sampler = MappedWeightedSampler.open(path)) {
+                assertThat(sampler.capacity()).isEqualTo(1L << 16);
+                assertThat(sampler.getWeight(7 * 3)).isEqualTo(2.0);
+                assertThat(sampler.getWeight(1)).isEqualTo(0.0);
+                for (int i=0; i<10_000; i++) {
+                    assertThat(sampler.sample() % 7).isEqualTo(0L);
+                }
+            }
+
+            Files.write(path, new byte[64]);
+            Assertions.assertThrows(IOException.class, () -> MappedWeightedSampler.open(path));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void capacityTooLargeTest() throws IOException {
+        Path path = Files.createTempFile("sampler", ".bin");
+        try {
+            // 2^57 ids take 2^31 chunks, one more than an array can hold, which is rejected before the file is extended
+            Assertions.assertThrows(IllegalArgumentException.class, () -> MappedWeightedSampler.create(path, 1L << 57));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> MappedWeightedSampler.create(path, Long.MAX_VALUE));
+            assertThat(Files.size(path)).isEqualTo(0L);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package net.moulberry.utils;
+
+import net.moulberry.utils.probability.WeightedRandomIntSet;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class WeightedRandomIntSetTest {
+
+    @Test
+    public void emptyTree() {
+        WeightedRandomIntSet set = new WeightedRandomIntSet();
+        assertThat(set.isEmpty()).isTrue();
+        Assertions.assertThrows(NoSuchElementException.class, set::sample);
+        Assertions.assertThrows(NoSuchElementException.class, set::pop);
+    }
+
+    @Test
+    public void containsTest() {
+        WeightedRandomIntSet set = new WeightedRandomIntSet();
+
+        assertThat(set.add(0, 2)).isTrue();
+        assertThat(set.add(0, 2)).isFalse();
+        assertThat(set.add(-1337, 2)).isTrue();
+        assertThat(set.contains(0)).isTrue();
+        assertThat(set.contains(-1337)).isTrue();
+        assertThat(set.contains(69)).isFalse();
+        assertThat(set.remove(0)).isTrue();
+        assertThat(set.remove(0)).isFalse();
+        assertThat(set.contains(0)).isFalse();
+        assertThat(set.pop()).isEqualTo(-1337);
+        assertThat(set.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void churnTest() {
+        WeightedRandomIntSet set = new WeightedRandomIntSet(0);
+        Map<Integer, Float> expected = new HashMap<>();
+
+        Random random = new Random(1337);
+        for (int i=0; i<10_000; i++) {
+            int element = random.nextInt(500) - 250;
+            if (random.nextBoolean()) {
+                float weight = 1 + random.nextInt(10);
+                assertThat(set.add(element, weight)).isEqualTo(expected.putIfAbsent(element, weight) == null);
+            } else {
+                assertThat(set.remove(element)).isEqualTo(expected.remove(element) != null);
+            }
+        }
+
+        assertThat(set.size()).isEqualTo(expected.size());
+
+        float totalWeight = 0;
+        for (Map.Entry<Integer, Float> entry : expected.entrySet()) {
+            assertThat(set.getWeight(entry.getKey())).isEqualTo(entry.getValue());
+            totalWeight += entry.getValue();
+        }
+        assertThat(set.totalWeight()).isEqualTo(totalWeight);
+
+        Set<Integer> popped = new HashSet<>();
+        while (!set.isEmpty()) {
+            popped.add(set.pop());
+        }
+        assertThat(popped).isEqualTo(expected.keySet());
+    }
+
+    @Test
+    public void fairnessTest() {
+        WeightedRandomIntSet set = new WeightedRandomIntSet();
+
+        final float totalWeight = 100;
+        set.add(1, 17);
+        set.add(1337, 32);
+        set.add(64, 51);
+
+        int samples1 = 0;
+        int samples2 = 0;
+        int samples3 = 0;
+
+        final int trials = 1_000_000;
+        for (int i=0; i<trials; i++) {
+            int sample = set.sample();
+
+            if (sample == 1) {
+                samples1++;
+            } else if (sample == 1337) {
+                samples2++;
+            } else if (sample == 64) {
+                samples3++;
+            } else {
+                throw new IllegalStateException("Returned unknown value");
+            }
+        }
+
+        assertThat((float)samples1/trials).isWithin(0.01f).of(17/totalWeight);
+        assertThat((float)samples2/trials).isWithin(0.01f).of(32/totalWeight);
+        assertThat((float)samples3/trials).isWithin(0.01f).of(51/totalWeight);
+    }
+
+}
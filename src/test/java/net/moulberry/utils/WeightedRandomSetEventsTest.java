@@ -0,0 +1,180 @@
+package net.moulberry.utils;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import net.moulberry.utils.probability.WeightedRandomSet;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.random.RandomGenerator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Events are only created with -Dnet.moulberry.utils.probability.jfr=true, which the Gradle jfrTest task sets
+ * The regular test task runs without it, so both configurations are covered by check
+ */
+public class WeightedRandomSetEventsTest {
+
+    private static final String PREFIX = "net.moulberry.utils.WeightedRandomSet.";
+    private static final boolean ENABLED = Boolean.getBoolean("net.moulberry.utils.probability.jfr");
+
+    @Test
+    public void unchangedResultsTest() throws IOException {
+        List<Object> withoutRecording = runInstrumentedPaths();
+
+        List<Object> withRecording;
+        try (Recording recording = startRecording()) {
+            withRecording = runInstrumentedPaths();
+            recording.stop();
+        }
+
+        assertThat(withRecording).isEqualTo(withoutRecording);
+    }
+
+    @Test
+    public void recordedEventsTest() throws IOException {
+        List<RecordedEvent> events;
+        try (Recording recording = startRecording()) {
+            runInstrumentedPaths();
+            recording.stop();
+            events = readEvents(recording);
+        }
+
+        if (!ENABLED) {
+            assertThat(events).isEmpty();
+            return;
+        }
+
+        Set<String> operations = new HashSet<>();
+        Set<String> rebuildReasons = new HashSet<>();
+        int roundingMisses = 0;
+        for (RecordedEvent event : events) {
+            switch (event.getEventType().getName()) {
+                case PREFIX + "Operation" -> {
+                    operations.add(event.getString("operation"));
+                    assertThat(event.getInt("depth")).isAtLeast(1);
+                }
+                case PREFIX + "Rebuild" -> {
+                    rebuildReasons.add(event.getString("reason"));
+                    assertThat(event.getInt("leaves")).isAtLeast(1);
+                }
+                case PREFIX + "RoundingMiss" -> {
+                    roundingMisses++;
+                    assertThat(event.getDouble("overshoot")).isAtLeast(0.0);
+                }
+            }
+        }
+
+        assertThat(operations).containsExactly("add", "remove", "sample");
+        assertThat(rebuildReasons).containsExactly("rebalance", "bulk remove");
+        assertThat(roundingMisses).isAtLeast(1);
+    }
+
+    @Test
+    public void abandonedSnapshotTest() throws IOException {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>(true);
+        for (int i=0; i<1000; i++) {
+            set.add(i, 1);
+        }
+
+        List<RecordedEvent> events;
+        try (Recording recording = startRecording()) {
+            // Snapshots that are never finished must not make later modifications copy the whole tree
+            for (int i=0; i<100; i++) {
+                for (int element : set) {
+                    if (element >= 0) break;
+                }
+                set.iterator();
+                set.setWeight(i, 2);
+                set.addWeight(i + 500, 1);
+            }
+            recording.stop();
+            events = readEvents(recording);
+        }
+
+        for (RecordedEvent event : events) {
+            assertThat(event.getEventType().getName()).isNotEqualTo(PREFIX + "Rebuild");
+        }
+        assertThat(set.totalWeight()).isEqualTo(1200f);
+    }
+
+    private static List<RecordedEvent> readEvents(Recording recording) throws IOException {
+        Path file = Files.createTempFile("weighted-random-set", ".jfr");
+        try {
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static Recording startRecording() {
+        Recording recording = new Recording();
+        recording.enable(PREFIX + "Operation").withoutThreshold();
+        recording.enable(PREFIX + "Rebuild").withoutThreshold();
+        recording.enable(PREFIX + "RoundingMiss");
+        recording.start();
+        return recording;
+    }
+
+    /**
+     * Goes through every instrumented path and returns everything it observed
+     */
+    private static List<Object> runInstrumentedPaths() {
+        List<Object> observed = new ArrayList<>();
+
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        set.setRandomGenerator(new SplittableRandom(7));
+        for (int i=0; i<1000; i++) {
+            set.add(i, 1 + i % 5);
+        }
+
+        // Removing one side of the tree leaves it unbalanced
+        List<Integer> order = new ArrayList<>(set);
+        for (int i=0; i<900; i++) {
+            set.remove(order.get(i));
+        }
+        observed.add(set.depth());
+
+        for (int i=0; i<100; i++) {
+            observed.add(set.sample());
+        }
+
+        // Removes most of what's left, which rebuilds the rest
+        set.removeIf(i -> i % 10 != 0);
+        observed.add(new ArrayList<>(set));
+        observed.add(set.totalWeight());
+
+        // Modifying while a snapshot iterator is alive copies only the modified path
+        WeightedRandomSet<Integer> snapshotted = new WeightedRandomSet<>(true);
+        for (int i=0; i<10; i++) {
+            snapshotted.add(i, 1);
+        }
+        Iterator<Integer> iterator = snapshotted.iterator();
+        snapshotted.add(10, 1);
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        observed.add(count);
+
+        // Sums that round up let the largest possible sample land past the end of the last leaf
+        Map<Integer, Float> weights = new LinkedHashMap<>();
+        weights.put(0, 0x1.8p-51f);
+        weights.put(1, 0x1.0p-31f);
+        weights.put(2, 0x1.8p-24f);
+        weights.put(3, 1f);
+        weights.put(4, 1f);
+        RandomGenerator largest = () -> -1L;
+        observed.add(WeightedRandomSet.of(weights).sample(largest));
+
+        return observed;
+    }
+
+}
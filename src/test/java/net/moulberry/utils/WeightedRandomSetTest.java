@@ -6,12 +6,21 @@ import com.google.common.collect.testing.features.CollectionSize;
 import junit.framework.TestResult;
 import junit.framework.TestSuite;
 import junit.textui.TestRunner;
+import net.moulberry.utils.probability.AliasSampler;
+import net.moulberry.utils.probability.ElementCodec;
 import net.moulberry.utils.probability.WeightedRandomSet;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -305,4 +314,1192 @@ public class WeightedRandomSetTest {
         assertThat(ratioSamples3).isWithin(0.01f).of(51/totalWeight);
     }
 
+    @Test
+    public void aliasSamplerFairnessTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+
+        final float totalWeight = 100;
+        set.add(1, 17);
+        set.add(1337, 32);
+        set.add(64, 51);
+
+        AliasSampler<Integer> sampler = set.toAliasSampler();
+
+        assertThat(sampler.size()).isEqualTo(3);
+        assertThat(sampler.totalWeight()).isEqualTo(totalWeight);
+
+        Map<Integer, Integer> counts = new HashMap<>();
+
+        final int trials = 1_000_000;
+        for (int i=0; i<trials; i++) {
+            Integer sample = sampler.sample();
+            assertThat(sample).isNotNull();
+            counts.merge(sample, 1, Integer::sum);
+        }
+
+        assertThat(counts.get(1)/(float)trials).isWithin(0.01f).of(17/totalWeight);
+        assertThat(counts.get(1337)/(float)trials).isWithin(0.01f).of(32/totalWeight);
+        assertThat(counts.get(64)/(float)trials).isWithin(0.01f).of(51/totalWeight);
+    }
+
+    @Test
+    public void aliasSamplerSnapshotTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        assertThat(set.toAliasSampler().sample()).isNull();
+
+        set.add(1, 1);
+        AliasSampler<Integer> sampler = set.toAliasSampler();
+
+        set.remove(1);
+        set.add(2, 1);
+
+        for (int i=0; i<100; i++) {
+            assertThat(sampler.sample()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void batchSampleTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+
+        Integer[] out = new Integer[100];
+        set.sample(100, out);
+        for (Integer sample : out) {
+            assertThat(sample).isNull();
+        }
+
+        final float totalWeight = 100;
+        set.add(1, 17);
+        set.add(1337, 32);
+        set.add(64, 51);
+
+        Map<Integer, Integer> arrayCounts = new HashMap<>();
+        Map<Integer, Integer> consumerCounts = new HashMap<>();
+
+        final int batches = 1_000;
+        for (int i=0; i<batches; i++) {
+            set.sample(out.length, out);
+            for (Integer sample : out) {
+                assertThat(sample).isNotNull();
+                arrayCounts.merge(sample, 1, Integer::sum);
+            }
+
+            set.sample(out.length, sample -> consumerCounts.merge(sample, 1, Integer::sum));
+        }
+
+        final int trials = batches * out.length;
+        for (Map<Integer, Integer> counts : List.of(arrayCounts, consumerCounts)) {
+            assertThat(counts.values().stream().mapToInt(Integer::intValue).sum()).isEqualTo(trials);
+            assertThat(counts.get(1)/(float)trials).isWithin(0.01f).of(17/totalWeight);
+            assertThat(counts.get(1337)/(float)trials).isWithin(0.01f).of(32/totalWeight);
+            assertThat(counts.get(64)/(float)trials).isWithin(0.01f).of(51/totalWeight);
+        }
+    }
+
+    @Test
+    public void batchSampleOrderTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        set.add(0, 1);
+        set.add(1, 1);
+
+        // The first position of a batch must be as random as any other
+        int zeroes = 0;
+        Integer[] out = new Integer[64];
+        final int trials = 20_000;
+        for (int i=0; i<trials; i++) {
+            set.sample(out.length, out);
+            if (out[0] == 0) zeroes++;
+        }
+
+        assertThat(zeroes/(float)trials).isWithin(0.02f).of(0.5f);
+    }
+
+    @Test
+    public void sampleCountsTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        set.sampleCounts(1_000, (element, count) -> {
+            throw new IllegalStateException("Empty set produced a sample");
+        });
+
+        final float totalWeight = 100;
+        set.add(1, 17);
+        set.add(1337, 32);
+        set.add(64, 51);
+
+        final long trials = 100_000_000L;
+        Map<Integer, Long> counts = new HashMap<>();
+        set.sampleCounts(trials, (element, count) -> {
+            assertThat(counts.containsKey(element)).isFalse();
+            counts.put(element, count);
+        });
+
+        assertThat(counts.values().stream().mapToLong(Long::longValue).sum()).isEqualTo(trials);
+        assertThat(counts.get(1)/(double)trials).isWithin(0.001).of(17/totalWeight);
+        assertThat(counts.get(1337)/(double)trials).isWithin(0.001).of(32/totalWeight);
+        assertThat(counts.get(64)/(double)trials).isWithin(0.001).of(51/totalWeight);
+    }
+
+    @Test
+    public void sampleCountsFairnessTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        for (int i=0; i<10; i++) {
+            set.add(i, i+1);
+        }
+
+        // Many small batches, so the exact small-n binomial path is exercised as well
+        long[] counts = new long[10];
+        final int batches = 20_000;
+        final int batchSize = 50;
+        for (int i=0; i<batches; i++) {
+            set.sampleCounts(batchSize, (element, count) -> counts[element] += count);
+        }
+
+        final float trials = batches * batchSize;
+        for (int i=0; i<10; i++) {
+            assertThat(counts[i]/trials).isWithin(0.005f).of((i+1)/set.totalWeight());
+        }
+    }
+
+    @Test
+    public void setWeightTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        set.add(1, 1);
+        set.add(2, 1);
+        set.add(3, 1);
+
+        assertThat(set.setWeight(4, 2)).isFalse();
+        assertThat(set.addWeight(4, 2)).isFalse();
+
+        assertThat(set.setWeight(1, 17)).isTrue();
+        assertThat(set.addWeight(2, 31)).isTrue();
+        assertThat(set.setWeight(3, 51)).isTrue();
+
+        assertThat(set.getWeight(1)).isEqualTo(17f);
+        assertThat(set.getWeight(2)).isEqualTo(32f);
+        assertThat(set.getWeight(3)).isEqualTo(51f);
+        assertThat(set.getWeight(4)).isEqualTo(0f);
+        assertThat(set.totalWeight()).isEqualTo(100f);
+        assertThat(set.size()).isEqualTo(3);
+
+        Map<Integer, Integer> counts = new HashMap<>();
+
+        final int trials = 1_000_000;
+        for (int i=0; i<trials; i++) {
+            counts.merge(set.sample(), 1, Integer::sum);
+        }
+
+        assertThat(counts.get(1)/(float)trials).isWithin(0.01f).of(0.17f);
+        assertThat(counts.get(2)/(float)trials).isWithin(0.01f).of(0.32f);
+        assertThat(counts.get(3)/(float)trials).isWithin(0.01f).of(0.51f);
+    }
+
+    @Test
+    public void setWeightDuringIterationTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+
+        Set<Integer> values = new HashSet<>();
+        for (int i=0; i<100; i++) {
+            set.add(i, 1);
+            values.add(i);
+        }
+
+        for (int sample : set) {
+            assertThat(sample).isIn(values);
+            values.remove(sample);
+
+            // Reweight both an iterated and a not yet iterated element
+            set.setWeight(sample, 5);
+            set.addWeight((sample + 37) % 100, 1);
+        }
+
+        assertThat(values).isEmpty();
+
+        float totalWeight = 0;
+        for (int i=0; i<100; i++) {
+            totalWeight += set.getWeight(i);
+        }
+        assertThat(set.totalWeight()).isEqualTo(totalWeight);
+    }
+
+    @Test
+    public void bulkConstructionTest() {
+        assertThat(WeightedRandomSet.of(Map.of()).isEmpty()).isTrue();
+        assertThat(WeightedRandomSet.of(Map.of(1337, 3f)).sample()).isEqualTo(1337);
+
+        Map<Integer, Float> weights = new HashMap<>();
+        float totalWeight = 0;
+        for (int i=0; i<1000; i++) {
+            weights.put(i, (float) (1 + i % 7));
+            totalWeight += 1 + i % 7;
+        }
+
+        WeightedRandomSet<Integer> set = WeightedRandomSet.of(weights);
+
+        assertThat(set).isEqualTo(weights.keySet());
+        assertThat(set.size()).isEqualTo(1000);
+        assertThat(set.totalWeight()).isEqualTo(totalWeight);
+        for (int i=0; i<1000; i++) {
+            assertThat(set.getWeight(i)).isEqualTo(weights.get(i));
+        }
+
+        // The bulk-built tree must support the regular mutations afterwards
+        assertThat(set.add(1000, 1)).isTrue();
+        assertThat(set.remove(0)).isTrue();
+        for (int i=0; i<1000; i++) {
+            assertThat(set.pop()).isNotNull();
+        }
+        assertThat(set.isEmpty()).isTrue();
+    }
+
+    private static int maxBalancedDepth(int size) {
+        return (int) Math.ceil(Math.log(Math.max(size, 1)) / Math.log(4 / 3.0)) + 1;
+    }
+
+    @Test
+    public void depthTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        assertThat(set.depth()).isEqualTo(0);
+
+        set.add(0, 1);
+        assertThat(set.depth()).isEqualTo(1);
+
+        set.add(1, 1);
+        assertThat(set.depth()).isEqualTo(2);
+
+        for (int i=2; i<1024; i++) {
+            set.add(i, 1);
+        }
+        assertThat(set.depth()).isEqualTo(11);
+    }
+
+    @Test
+    public void pruneBalanceTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        for (int i=0; i<(1 << 16); i++) {
+            set.add(i, 1);
+        }
+
+        // Keeping only one element from each level of the original tree would leave a chain without rebalancing
+        for (int i=0; i<(1 << 16); i++) {
+            if (Integer.bitCount(i) != 1) {
+                set.remove(i);
+            }
+        }
+
+        assertThat(set.size()).isEqualTo(16);
+        assertThat(set.depth()).isAtMost(maxBalancedDepth(set.size()));
+    }
+
+    @Test
+    public void churnBalanceTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        for (int i=0; i<4096; i++) {
+            set.add(i, 1);
+        }
+
+        // Removing a contiguous run of insertions hollows out one side of the tree
+        for (int i=0; i<4096; i+=2) {
+            set.remove(i);
+            assertThat(set.depth()).isAtMost(maxBalancedDepth(set.size()));
+        }
+
+        Random random = new Random(1337);
+        Map<Integer, Float> expected = new HashMap<>();
+        for (int element : set) {
+            expected.put(element, 1f);
+        }
+
+        for (int i=0; i<100_000; i++) {
+            int element = random.nextInt(8192);
+            if (random.nextInt(3) == 0) {
+                float weight = 1 + random.nextInt(4);
+                assertThat(set.add(element, weight)).isEqualTo(expected.putIfAbsent(element, weight) == null);
+            } else {
+                assertThat(set.remove(element)).isEqualTo(expected.remove(element) != null);
+            }
+
+            if (i % 1000 == 0) {
+                assertThat(set.depth()).isAtMost(maxBalancedDepth(set.size()));
+            }
+        }
+
+        assertThat(set).isEqualTo(expected.keySet());
+        assertThat(set.totalWeight()).isEqualTo((float) expected.values().stream().mapToDouble(Float::doubleValue).sum());
+    }
+
+    @Test
+    public void snapshotIterationTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>(true);
+
+        Set<Integer> values = new HashSet<>();
+        for (int i=0; i<100; i++) {
+            set.add(i, 1 + i % 3);
+            values.add(i);
+        }
+
+        Iterator<Integer> iterator1 = set.iterator();
+        Iterator<Integer> iterator2 = set.iterator();
+
+        Set<Integer> iterated1 = new HashSet<>();
+        Set<Integer> iterated2 = new HashSet<>();
+        while (iterator1.hasNext() || iterator2.hasNext()) {
+            if (iterator1.hasNext()) iterated1.add(iterator1.next());
+            if (iterator2.hasNext()) iterated2.add(iterator2.next());
+        }
+
+        assertThat(iterated1).isEqualTo(values);
+        assertThat(iterated2).isEqualTo(values);
+    }
+
+    @Test
+    public void snapshotIterationModifyTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>(true);
+
+        Set<Integer> values = new HashSet<>();
+        for (int i=0; i<100; i++) {
+            set.add(i, 1);
+            values.add(i);
+        }
+
+        // Modifying the set doesn't affect an iterator that is already running
+        Set<Integer> iterated = new HashSet<>();
+        for (int element : set) {
+            iterated.add(element);
+            set.remove(element);
+            set.add(element + 1000, 2);
+            set.setWeight(element + 1000, 3);
+        }
+
+        assertThat(iterated).isEqualTo(values);
+        assertThat(set.size()).isEqualTo(100);
+        assertThat(set.totalWeight()).isEqualTo(300f);
+        for (int i=0; i<100; i++) {
+            assertThat(set.contains(i)).isFalse();
+            assertThat(set.getWeight(i + 1000)).isEqualTo(3f);
+        }
+
+        // An abandoned iterator keeps seeing the tree as it was when it was created
+        Iterator<Integer> abandoned = set.iterator();
+        abandoned.next();
+        set.clear();
+        set.add(-1, 1);
+
+        int remaining = 0;
+        while (abandoned.hasNext()) {
+            assertThat(abandoned.next()).isAtLeast(1000);
+            remaining++;
+        }
+        assertThat(remaining).isEqualTo(99);
+    }
+
+    @Test
+    public void snapshotCopyOnWriteTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>(true);
+        set.setNodePoolSize(64);
+        Map<Integer, Float> expected = new HashMap<>();
+        List<Iterator<Integer>> snapshots = new ArrayList<>();
+        List<Set<Integer>> snapshotValues = new ArrayList<>();
+        Random random = new Random(11);
+
+        for (int i=0; i<20_000; i++) {
+            int element = random.nextInt(1000);
+            switch (random.nextInt(4)) {
+                case 0 -> {
+                    float weight = 1 + random.nextInt(4);
+                    if (set.add(element, weight)) expected.put(element, weight);
+                }
+                case 1 -> {
+                    if (set.remove(element)) expected.remove(element);
+                }
+                case 2 -> {
+                    float weight = 1 + random.nextInt(4);
+                    if (set.setWeight(element, weight)) expected.put(element, weight);
+                }
+                default -> {
+                    // Snapshots that are abandoned part way through, left untouched, or drained later
+                    Iterator<Integer> iterator = set.iterator();
+                    if (random.nextBoolean() && iterator.hasNext()) iterator.next();
+                    if (i % 50 == 0) {
+                        snapshots.add(set.iterator());
+                        snapshotValues.add(new HashSet<>(expected.keySet()));
+                    }
+                }
+            }
+
+            if (i % 5000 == 0) {
+                set.removeIf(e -> e % 7 == 0);
+                expected.keySet().removeIf(e -> e % 7 == 0);
+            }
+        }
+
+        // Leaves are copied while snapshots share them, and renormalizing must copy them too
+        set.scaleAll(0x1p-40f);
+        set.scaleAll(0x1p-40f);
+        set.scaleAll(0x1p80f);
+
+        for (int i=0; i<snapshots.size(); i++) {
+            Set<Integer> iterated = new HashSet<>();
+            snapshots.get(i).forEachRemaining(iterated::add);
+            assertThat(iterated).isEqualTo(snapshotValues.get(i));
+        }
+
+        assertThat(set).isEqualTo(expected.keySet());
+        assertThat(set.depth()).isAtMost(maxBalancedDepth(set.size()));
+        float total = 0;
+        for (Map.Entry<Integer, Float> entry : expected.entrySet()) {
+            assertThat(set.getWeight(entry.getKey())).isEqualTo(entry.getValue());
+            total += entry.getValue();
+        }
+        assertThat(set.totalWeight()).isWithin(total * 1e-6f).of(total);
+    }
+
+    @Test
+    public void snapshotIterationFairnessTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>(true);
+
+        set.add(0, 17);
+        set.add(1, 32);
+        set.add(2, 51);
+
+        int[][] actualSamples = new int[3][3];
+
+        final int trials = 1_000_000;
+        for (int i=0; i<trials; i++) {
+            int index = 0;
+            for (int sample : set) {
+                actualSamples[index++][sample]++;
+            }
+        }
+
+        int[][] theoreticalSamples = calculateTheoreticalFairness(trials);
+
+        for (int i=0; i<3; i++) {
+            for (int j=0; j<3; j++) {
+                assertThat(actualSamples[i][j]/(float)trials)
+                        .isWithin(0.01f).of(theoreticalSamples[i][j]/(float)trials);
+            }
+        }
+    }
+
+    @Test
+    public void spliteratorTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        assertThat(set.stream().count()).isEqualTo(0L);
+
+        long expectedSum = 0;
+        for (int i=0; i<100_000; i++) {
+            set.add(i, 1);
+            expectedSum += i;
+        }
+
+        Spliterator<Integer> spliterator = set.spliterator();
+        assertThat(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT)).isTrue();
+        assertThat(spliterator.estimateSize()).isEqualTo(100_000L);
+
+        Spliterator<Integer> prefix = spliterator.trySplit();
+        assertThat(prefix).isNotNull();
+        assertThat(prefix.estimateSize() + spliterator.estimateSize()).isEqualTo(100_000L);
+        assertThat(prefix.estimateSize()).isAtLeast(25_000L);
+        assertThat(spliterator.estimateSize()).isAtLeast(25_000L);
+
+        assertThat(set.parallelStream().mapToLong(Integer::longValue).sum()).isEqualTo(expectedSum);
+        assertThat(set.parallelStream().distinct().count()).isEqualTo(100_000L);
+    }
+
+    @Test
+    public void spliteratorModificationTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        for (int i=0; i<100; i++) {
+            set.add(i, 1);
+        }
+
+        Spliterator<Integer> spliterator = set.spliterator();
+        spliterator.tryAdvance(element -> {});
+        set.add(100, 1);
+
+        Assertions.assertThrows(ConcurrentModificationException.class, () -> spliterator.tryAdvance(element -> {}));
+        Assertions.assertThrows(ConcurrentModificationException.class, () -> set.stream().forEach(set::remove));
+    }
+
+    @Test
+    public void sampleDistinctTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        assertThat(set.sampleDistinct(5)).isEmpty();
+
+        set.add(1337, 3);
+        assertThat(set.sampleDistinct(5)).isEqualTo(List.of(1337));
+
+        for (int i=0; i<100; i++) {
+            set.add(i, 1 + i % 5);
+        }
+
+        List<Integer> picked = set.sampleDistinct(50);
+        assertThat(picked).hasSize(50);
+        assertThat(picked).containsNoDuplicates();
+        assertThat(set.sampleDistinct(1000)).hasSize(101);
+        assertThat(set.sampleDistinct(0)).isEmpty();
+
+        // The set itself is untouched
+        assertThat(set.size()).isEqualTo(101);
+        assertThat(set.totalWeight()).isEqualTo(303f);
+    }
+
+    @Test
+    public void sampleDistinctFairnessTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+
+        set.add(0, 17);
+        set.add(1, 32);
+        set.add(2, 51);
+
+        int[][] actualSamples = new int[3][3];
+
+        final int trials = 1_000_000;
+        for (int i=0; i<trials; i++) {
+            List<Integer> picked = set.sampleDistinct(2);
+            actualSamples[0][picked.get(0)]++;
+            actualSamples[1][picked.get(1)]++;
+        }
+
+        int[][] theoreticalSamples = calculateTheoreticalFairness(trials);
+
+        for (int i=0; i<2; i++) {
+            for (int j=0; j<3; j++) {
+                assertThat(actualSamples[i][j]/(float)trials)
+                        .isWithin(0.01f).of(theoreticalSamples[i][j]/(float)trials);
+            }
+        }
+    }
+
+    @Test
+    public void scaleAllTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        set.add(1, 4);
+        set.add(2, 12);
+
+        set.scaleAll(0.5f);
+        assertThat(set.totalWeight()).isEqualTo(8f);
+        assertThat(set.getWeight(1)).isEqualTo(2f);
+        assertThat(set.getWeight(2)).isEqualTo(6f);
+
+        // Weights given after scaling are taken as-is
+        set.add(3, 2);
+        set.setWeight(1, 8);
+        set.addWeight(2, 2);
+        assertThat(set.getWeight(1)).isEqualTo(8f);
+        assertThat(set.getWeight(2)).isEqualTo(8f);
+        assertThat(set.getWeight(3)).isEqualTo(2f);
+        assertThat(set.totalWeight()).isEqualTo(18f);
+
+        set.decay(1, 2);
+        assertThat(set.totalWeight()).isEqualTo(4.5f);
+        assertThat(set.deepClone().totalWeight()).isEqualTo(4.5f);
+
+        int samples3 = 0;
+        final int trials = 1_000_000;
+        for (int i=0; i<trials; i++) {
+            if (set.sample() == 3) samples3++;
+        }
+        assertThat(samples3/(float)trials).isWithin(0.01f).of(2/18f);
+    }
+
+    @Test
+    public void skewedIterationTest() {
+        // Once the heavy element is visited, the weight left to iterate rounds to 0
+        for (int i=0; i<100; i++) {
+            WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+            set.add(0, 1e20f);
+            set.add(1, 1);
+            set.add(2, 1);
+            set.scaleAll(0.5f);
+
+            List<Integer> iterated = new ArrayList<>();
+            for (Integer element : set) {
+                iterated.add(element);
+            }
+            assertThat(iterated).containsExactly(0, 1, 2);
+        }
+    }
+
+    @Test
+    public void longDecayTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+
+        // Without renormalization the global scale would underflow long before the end
+        for (int tick=0; tick<20_000; tick++) {
+            set.decay(10, 1);
+            set.add(tick, 1);
+
+            if (set.size() > 1000) {
+                set.remove(tick - 1000);
+            }
+        }
+
+        assertThat(set.getWeight(19_999)).isWithin(1e-4f).of(1f);
+        assertThat(set.getWeight(19_989)).isWithin(1e-4f).of(0.5f);
+        assertThat(set.totalWeight()).isWithin(0.01f).of((float) (1 / (1 - Math.pow(0.5, 0.1))));
+        assertThat(set.sample()).isAtLeast(19_000);
+    }
+
+    @Test
+    public void scaledWeightRangeTest() {
+        // Both scales are still in range, but the new weights wouldn't fit as a float relative to them
+        WeightedRandomSet<Integer> shrunk = new WeightedRandomSet<>();
+        shrunk.add(0, 1);
+        shrunk.scaleAll(0x1p-60f);
+        shrunk.add(1, 1e30f);
+        shrunk.add(2, 1);
+        shrunk.setWeight(2, 2e30f);
+        shrunk.add(3, 1);
+        shrunk.addWeight(3, 3e30f);
+        assertThat(shrunk.getWeight(1)).isEqualTo(1e30f);
+        assertThat(shrunk.getWeight(2)).isEqualTo(2e30f);
+        assertThat(shrunk.getWeight(3)).isEqualTo(3e30f);
+        assertThat(shrunk.totalWeight()).isWithin(1e24f).of(6e30f);
+
+        WeightedRandomSet<Integer> grown = new WeightedRandomSet<>();
+        grown.add(0, 1e-40f);
+        grown.scaleAll(0x1p60f);
+        grown.add(1, 1e-40f);
+        grown.add(2, 1);
+        grown.setWeight(2, 1e-40f);
+        assertThat(grown.getWeight(1)).isEqualTo(1e-40f);
+        assertThat(grown.getWeight(2)).isEqualTo(1e-40f);
+        assertThat(grown.sample()).isEqualTo(0);
+    }
+
+    @Test
+    public void scaleAllInvalidTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        set.add(0, 1);
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> set.scaleAll(0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> set.scaleAll(-1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> set.scaleAll(Float.NaN));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> set.scaleAll(Float.POSITIVE_INFINITY));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> set.decay(0, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> set.decay(Double.NaN, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> set.decay(1, -1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> set.decay(1, Double.POSITIVE_INFINITY));
+        assertThat(set.getWeight(0)).isEqualTo(1f);
+    }
+
+    @Test
+    public void categorySampleTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        final int evens = 1;
+        final int odds = 1 << 1;
+        final int large = 1 << 5;
+
+        for (int i=0; i<100; i++) {
+            set.add(i, i + 1, (i % 2 == 0 ? evens : odds) | (i >= 90 ? large : 0));
+        }
+
+        assertThat(set.totalCategoryWeight(0)).isEqualTo(2500f);
+        assertThat(set.totalCategoryWeight(1)).isEqualTo(2550f);
+        assertThat(set.totalCategoryWeight(2)).isEqualTo(0f);
+        assertThat(set.sampleCategory(2)).isNull();
+
+        for (int i=0; i<10_000; i++) {
+            assertThat(set.sampleCategory(0) % 2).isEqualTo(0);
+            assertThat(set.sampleCategory(1) % 2).isEqualTo(1);
+            assertThat(set.sampleCategory(5)).isAtLeast(90);
+        }
+
+        // Sample 98 with probability 99/955 among the large elements
+        int samples98 = 0;
+        final int trials = 1_000_000;
+        for (int i=0; i<trials; i++) {
+            if (set.sampleCategory(5) == 98) samples98++;
+        }
+        assertThat(samples98/(float)trials).isWithin(0.01f).of(99/955f);
+
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> set.sampleCategory(32));
+    }
+
+    @Test
+    public void categoryModificationTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        for (int i=0; i<1000; i++) {
+            set.add(i, 0.1f + i % 7, i == 500 ? 0b11 : 0b01);
+        }
+
+        assertThat(set.sampleCategory(1)).isEqualTo(500);
+
+        set.setWeight(500, 20);
+        assertThat(set.totalCategoryWeight(1)).isEqualTo(20f);
+        set.scaleAll(0.5f);
+        assertThat(set.totalCategoryWeight(1)).isEqualTo(10f);
+
+        set.remove(500);
+        assertThat(set.totalCategoryWeight(1)).isEqualTo(0f);
+        assertThat(set.sampleCategory(1)).isNull();
+
+        for (int i=0; i<1000; i+=2) {
+            set.remove(i);
+        }
+        assertThat(set.totalCategoryWeight(0)).isWithin(0.1f).of(set.totalWeight());
+        for (int i=0; i<10_000; i++) {
+            assertThat(set.sampleCategory(0) % 2).isEqualTo(1);
+        }
+
+        WeightedRandomSet<Integer> clone = set.deepClone();
+        assertThat(clone.totalCategoryWeight(0)).isWithin(0.1f).of(set.totalCategoryWeight(0));
+    }
+
+    @Test
+    public void predicateSampleTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        for (int i=0; i<100; i++) {
+            set.add(i, i + 1);
+        }
+
+        assertThat(set.sample(i -> i > 100)).isNull();
+        assertThat(set.sample(i -> i == 5)).isEqualTo(5);
+
+        // Sample 1 with probability 2/6 among {0, 1, 2}
+        int samples1 = 0;
+        final int trials = 200_000;
+        for (int i=0; i<trials; i++) {
+            if (set.sample(e -> e < 3) == 1) samples1++;
+        }
+        assertThat(samples1/(float)trials).isWithin(0.01f).of(2/6f);
+        assertThat(set.size()).isEqualTo(100);
+    }
+
+    @Test
+    public void serializationTest() {
+        WeightedRandomSet<String> set = new WeightedRandomSet<>(true);
+        for (int i=0; i<1000; i++) {
+            set.add("element" + i, 1 + i % 13, i % 3 == 0 ? 0b100 : 0);
+        }
+        set.scaleAll(0.25f);
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) set.serializedSize(ElementCodec.STRING) + 8);
+        buffer.putInt(1234);
+        set.writeTo(buffer, ElementCodec.STRING);
+        assertThat(buffer.position()).isEqualTo(set.serializedSize(ElementCodec.STRING) + 4);
+        buffer.putInt(5678);
+
+        buffer.flip();
+        assertThat(buffer.getInt()).isEqualTo(1234);
+        WeightedRandomSet<String> read = WeightedRandomSet.readFrom(buffer, ElementCodec.STRING);
+        assertThat(buffer.getInt()).isEqualTo(5678);
+
+        assertThat(read).isEqualTo(set);
+        assertThat(read.totalWeight()).isEqualTo(set.totalWeight());
+        assertThat(read.totalCategoryWeight(2)).isEqualTo(set.totalCategoryWeight(2));
+        assertThat(read.depth()).isAtMost(maxBalancedDepth(read.size()));
+        for (String element : set) {
+            assertThat(read.getWeight(element)).isEqualTo(set.getWeight(element));
+        }
+
+        // Still a fully functional set after reading
+        assertThat(read.add("extra", 4)).isTrue();
+        assertThat(read.remove("element0")).isTrue();
+        assertThat(read.size()).isEqualTo(1000);
+    }
+
+    @Test
+    public void serializationFileTest() throws IOException {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        for (int i=0; i<10_000; i++) {
+            set.add(i, 1 + i % 7);
+        }
+
+        Path path = Files.createTempFile("weighted", ".bin");
+        try {
+            set.writeTo(path, ElementCodec.INTEGER);
+            assertThat(Files.size(path)).isEqualTo(set.serializedSize(ElementCodec.INTEGER));
+
+            WeightedRandomSet<Integer> read = WeightedRandomSet.readFrom(path, ElementCodec.INTEGER);
+            assertThat(read).isEqualTo(set);
+            assertThat(read.totalWeight()).isEqualTo(set.totalWeight());
+        } finally {
+            Files.delete(path);
+        }
+
+        WeightedRandomSet<Integer> empty = new WeightedRandomSet<>();
+        ByteBuffer buffer = ByteBuffer.allocate((int) empty.serializedSize(ElementCodec.INTEGER));
+        empty.writeTo(buffer, ElementCodec.INTEGER);
+        assertThat(WeightedRandomSet.readFrom(buffer.flip(), ElementCodec.INTEGER)).isEmpty();
+    }
+
+    @Test
+    public void serializationInvalidTest() {
+        WeightedRandomSet<Long> set = new WeightedRandomSet<>();
+        set.add(1L, 1);
+        set.add(2L, 2);
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) set.serializedSize(ElementCodec.LONG));
+        set.writeTo(buffer, ElementCodec.LONG);
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> WeightedRandomSet.readFrom(ByteBuffer.wrap(buffer.array(), 0, buffer.capacity() - 1), ElementCodec.LONG));
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> WeightedRandomSet.readFrom(ByteBuffer.allocate(64), ElementCodec.LONG));
+        Assertions.assertThrows(BufferOverflowException.class,
+            () -> set.writeTo(ByteBuffer.allocate(8), ElementCodec.LONG));
+
+        // A corrupt size must be rejected before anything is allocated for it
+        for (int size : new int[] { -1, Integer.MAX_VALUE, 1 << 28 }) {
+            ByteBuffer corrupt = ByteBuffer.wrap(buffer.array().clone()).order(ByteOrder.LITTLE_ENDIAN);
+            corrupt.putInt(6, size);
+            Assertions.assertThrows(IllegalArgumentException.class, () -> WeightedRandomSet.readFrom(corrupt, ElementCodec.LONG));
+        }
+    }
+
+    @Test
+    public void seededRandomTest() {
+        WeightedRandomSet<Integer> first = new WeightedRandomSet<>();
+        WeightedRandomSet<Integer> second = new WeightedRandomSet<>();
+        for (int i=0; i<1000; i++) {
+            first.add(i, 1 + i % 11);
+            second.add(i, 1 + i % 11);
+        }
+
+        first.setRandomGenerator(new SplittableRandom(42));
+        second.setRandomGenerator(new SplittableRandom(42));
+
+        for (int i=0; i<1000; i++) {
+            assertThat(first.sample()).isEqualTo(second.sample());
+        }
+        Iterator<Integer> firstIterator = first.iterator();
+        Iterator<Integer> secondIterator = second.iterator();
+        while (firstIterator.hasNext()) {
+            assertThat(firstIterator.next()).isEqualTo(secondIterator.next());
+        }
+        for (int i=0; i<100; i++) {
+            assertThat(first.pop()).isEqualTo(second.pop());
+        }
+
+        SplittableRandom a = new SplittableRandom(7);
+        SplittableRandom b = new SplittableRandom(7);
+        for (int i=0; i<1000; i++) {
+            assertThat(first.sample(a)).isEqualTo(second.sample(b));
+        }
+    }
+
+    /**
+     * Uses the identity hash code, so the HashMap order differs between otherwise identical sets
+     */
+    private static final class IdentityToken {
+        final int id;
+
+        IdentityToken(int id) {
+            this.id = id;
+        }
+    }
+
+    @Test
+    public void seededRandomIdentityHashTest() {
+        List<WeightedRandomSet<IdentityToken>> sets = new ArrayList<>();
+        for (int s=0; s<2; s++) {
+            WeightedRandomSet<IdentityToken> set = new WeightedRandomSet<>(true);
+            List<IdentityToken> tokens = new ArrayList<>();
+            for (int i=0; i<2000; i++) {
+                IdentityToken token = new IdentityToken(i);
+                tokens.add(token);
+                set.add(token, 1 + i % 13);
+            }
+
+            // Every rebuild must lay out the leaves the same way regardless of the map order
+            set.removeIf(token -> token.id % 3 == 0);
+            set.removeIf(token -> token.id % 100 == 1);
+            set.scaleAll(0x1p-70f);
+            set.scaleAll(0x1p70f);
+            set.iterator();
+            set.setWeight(tokens.get(2), 5);
+            set = set.deepClone();
+            set.setRandomGenerator(new SplittableRandom(42));
+            sets.add(set);
+        }
+
+        for (int i=0; i<10_000; i++) {
+            assertThat(sets.get(0).sample().id).isEqualTo(sets.get(1).sample().id);
+        }
+    }
+
+    @Test
+    public void sampleStreamTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        for (int i=0; i<100; i++) {
+            set.add(i, i + 1);
+        }
+
+        final int n = 1_000_003;
+        List<Integer> parallel = set.sampleStream(new SplittableRandom(1234), n).toList();
+        List<Integer> sequential = set.sampleStream(new SplittableRandom(1234), n).sequential().toList();
+        assertThat(parallel).hasSize(n);
+        assertThat(parallel).isEqualTo(sequential);
+        assertThat(set.sampleStream(new SplittableRandom(1234), n).parallel().filter(e -> e == 99).count())
+            .isEqualTo(sequential.stream().filter(e -> e == 99).count());
+
+        // Sample 99 with probability 100/5050
+        long samples99 = sequential.stream().filter(e -> e == 99).count();
+        assertThat(samples99/(float)n).isWithin(0.005f).of(100/5050f);
+
+        assertThat(set.sampleStream(new SplittableRandom(), 0).count()).isEqualTo(0L);
+        assertThat(new WeightedRandomSet<Integer>().sampleStream(new SplittableRandom(), 10).count()).isEqualTo(0L);
+
+        Stream<Integer> stream = set.sampleStream(new SplittableRandom(), 10_000);
+        set.add(1000, 1);
+        Assertions.assertThrows(ConcurrentModificationException.class, stream::toList);
+    }
+
+    @Test
+    public void churnDriftTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        Random random = new Random(99);
+
+        // Weights spanning many orders of magnitude make every delta-based update round
+        for (int i=0; i<2_000_000; i++) {
+            set.add(i, (float) Math.pow(10, random.nextInt(12) - 4));
+            if (set.size() > 64) {
+                set.remove(i - 64);
+            }
+            if (i % 7 == 0) {
+                set.setWeight(i, 0.001f);
+            }
+        }
+
+        double expected = 0;
+        for (Integer element : set) {
+            expected += set.getWeight(element);
+        }
+        assertThat((double) set.totalWeight()).isWithin(expected * 1e-6).of(expected);
+
+        // A heavy element coming and going would leave rounding residue in every ancestor of the light ones
+        for (int i=0; i<100_000; i++) {
+            set.add(-i - 1, 1e7f);
+            set.remove(-i - 1);
+        }
+        assertThat((double) set.totalWeight()).isWithin(expected * 1e-6).of(expected);
+    }
+
+    @Test
+    public void bulkRemoveTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        for (int i=0; i<100_000; i++) {
+            set.add(i, 1 + i % 3, i % 10 == 0 ? 1 : 0);
+        }
+
+        // Removes most of the set, which rebuilds the rest
+        Set<Integer> prune = new HashSet<>();
+        for (int i=0; i<100_000; i++) {
+            if (i % 10 != 0) prune.add(i);
+        }
+        assertThat(set.removeAll(prune)).isTrue();
+        assertThat(set.removeAll(prune)).isFalse();
+        assertThat(set).hasSize(10_000);
+        assertThat(set.depth()).isAtMost(maxBalancedDepth(set.size()));
+        assertThat(set.totalWeight()).isEqualTo(set.totalCategoryWeight(0));
+        for (int i=0; i<10_000; i++) {
+            assertThat(set.sample() % 10).isEqualTo(0);
+        }
+
+        // Removes a small part of the set, one element at a time
+        assertThat(set.removeIf(i -> i % 1000 == 0)).isTrue();
+        assertThat(set).hasSize(9_900);
+        assertThat(set.contains(5000)).isFalse();
+        assertThat(set.contains(5010)).isTrue();
+
+        assertThat(set.retainAll(List.of(10, 20, 30, 40))).isTrue();
+        assertThat(set).containsExactly(10, 20, 30, 40);
+        assertThat(set.totalWeight()).isEqualTo(2 + 3 + 1 + 2f);
+        assertThat(set.depth()).isAtMost(maxBalancedDepth(set.size()));
+
+        assertThat(set.retainAll(List.of())).isTrue();
+        assertThat(set).isEmpty();
+        assertThat(set.sample()).isNull();
+    }
+
+    @Test
+    public void bulkRemoveThrowingFilterTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        for (int i=0; i<1000; i++) {
+            set.add(i, 1);
+        }
+
+        // The filter throws after it has already matched some elements
+        Assertions.assertThrows(IllegalStateException.class, () -> set.removeIf(i -> {
+            if (i == 500) throw new IllegalStateException();
+            return i % 2 == 0;
+        }));
+
+        // Nothing was removed, so the map and the tree still agree
+        assertThat(set).hasSize(1000);
+        assertThat(set.totalWeight()).isEqualTo(1000f);
+        for (int i=0; i<1000; i++) {
+            assertThat(set.contains(i)).isTrue();
+        }
+        for (int i=0; i<10_000; i++) {
+            assertThat(set.contains(set.sample())).isTrue();
+        }
+    }
+
+    @Test
+    public void bulkRemoveDuringIterationTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>(true);
+        for (int i=0; i<1000; i++) {
+            set.add(i, 1);
+        }
+
+        Iterator<Integer> iterator = set.iterator();
+        set.removeIf(i -> i >= 10);
+        assertThat(set).hasSize(10);
+
+        // The snapshot iterator still sees the set as it was when it was created
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertThat(count).isEqualTo(1000);
+    }
+
+    @Test
+    public void nodePoolTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>(true);
+        set.setNodePoolSize(64);
+        Map<Integer, Float> expected = new HashMap<>();
+        Random random = new Random(5);
+
+        for (int i=0; i<200_000; i++) {
+            int element = random.nextInt(500);
+            if (expected.containsKey(element)) {
+                if (random.nextBoolean()) {
+                    assertThat(set.remove(element)).isTrue();
+                    expected.remove(element);
+                } else {
+                    Integer popped = set.pop();
+                    assertThat(expected.remove(popped)).isNotNull();
+                }
+            } else {
+                float weight = 1 + random.nextInt(4);
+                assertThat(set.add(element, weight, element % 2 == 0 ? 1 : 0)).isTrue();
+                expected.put(element, weight);
+            }
+
+            // Snapshots keep reading their own copy of the tree while removed nodes are reused
+            if (i % 10_000 == 0) {
+                Iterator<Integer> iterator = set.iterator();
+                Set<Integer> before = new HashSet<>(expected.keySet());
+                set.remove(set.sample());
+                set.add(1000 + i, 1);
+                set.remove(1000 + i);
+                Set<Integer> seen = new HashSet<>();
+                iterator.forEachRemaining(seen::add);
+                assertThat(seen).isEqualTo(before);
+                expected.keySet().retainAll(set);
+            }
+        }
+
+        assertThat(set).isEqualTo(expected.keySet());
+        assertThat(set.depth()).isAtMost(maxBalancedDepth(set.size()));
+
+        float total = 0;
+        float evenTotal = 0;
+        for (Map.Entry<Integer, Float> entry : expected.entrySet()) {
+            assertThat(set.getWeight(entry.getKey())).isEqualTo(entry.getValue());
+            total += entry.getValue();
+            if (entry.getKey() % 2 == 0) evenTotal += entry.getValue();
+        }
+        assertThat(set.totalWeight()).isEqualTo(total);
+        assertThat(set.totalCategoryWeight(0)).isEqualTo(evenTotal);
+        for (int i=0; i<1000; i++) {
+            assertThat(set.sampleCategory(0) % 2).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void nodePoolRebuildTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        set.setNodePoolSize(256);
+        for (int i=0; i<2000; i++) {
+            set.add(i, 1 + i % 3, i % 2 == 0 ? 1 : 0);
+        }
+
+        // Removing one side of the tree rebuilds unbalanced subtrees out of pooled nodes
+        List<Integer> order = new ArrayList<>(set);
+        for (int round=0; round<3; round++) {
+            for (int i=0; i<1500; i++) {
+                set.remove(order.get(i));
+            }
+            assertThat(set.depth()).isAtMost(maxBalancedDepth(set.size()));
+            for (int i=0; i<1500; i++) {
+                set.add(order.get(i), 1 + order.get(i) % 3, order.get(i) % 2 == 0 ? 1 : 0);
+            }
+            assertThat(set.depth()).isAtMost(maxBalancedDepth(set.size()));
+        }
+
+        // Removing most of the set rebuilds the rest out of pooled nodes
+        set.removeIf(i -> i % 4 != 0);
+        assertThat(set).hasSize(500);
+        assertThat(set.depth()).isAtMost(maxBalancedDepth(set.size()));
+
+        float total = 0;
+        for (int i=0; i<2000; i+=4) {
+            total += 1 + i % 3;
+        }
+        assertThat(set.totalWeight()).isEqualTo(total);
+        assertThat(set.totalCategoryWeight(0)).isEqualTo(total);
+        for (int i=0; i<1000; i++) {
+            assertThat(set.sampleCategory(0) % 4).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void weightedShuffleTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        assertThat(set.weightedShuffle().count()).isEqualTo(0L);
+
+        for (int i=0; i<1000; i++) {
+            set.add(i, 1 + i % 4);
+        }
+
+        List<Integer> shuffled = set.weightedShuffle().toList();
+        assertThat(shuffled).hasSize(1000);
+        assertThat(shuffled).containsNoDuplicates();
+        assertThat(shuffled).containsExactlyElementsIn(set);
+
+        // Several streams can be consumed at once, interleaved
+        Iterator<Integer> first = set.weightedShuffle().iterator();
+        Iterator<Integer> second = set.weightedShuffle().iterator();
+        Set<Integer> firstSeen = new HashSet<>();
+        Set<Integer> secondSeen = new HashSet<>();
+        while (first.hasNext()) {
+            firstSeen.add(first.next());
+            secondSeen.add(second.next());
+        }
+        assertThat(firstSeen).hasSize(1000);
+        assertThat(secondSeen).hasSize(1000);
+
+        Stream<Integer> stream = set.weightedShuffle();
+        set.remove(0);
+        Assertions.assertThrows(ConcurrentModificationException.class, () -> stream.findFirst());
+    }
+
+    @Test
+    public void weightedShuffleOrderTest() {
+        WeightedRandomSet<Integer> set = new WeightedRandomSet<>();
+        set.add(0, 1);
+        set.add(1, 2);
+        set.add(2, 7);
+
+        // 2 comes first with probability 0.7, and then 1 with probability 2/3
+        int firstIs2 = 0;
+        int order21 = 0;
+        final int trials = 200_000;
+        for (int i=0; i<trials; i++) {
+            List<Integer> order = set.weightedShuffle().limit(2).toList();
+            if (order.get(0) == 2) {
+                firstIs2++;
+                if (order.get(1) == 1) order21++;
+            }
+        }
+        assertThat(firstIs2/(float)trials).isWithin(0.01f).of(0.7f);
+        assertThat(order21/(float)trials).isWithin(0.01f).of(0.7f * 2/3f);
+    }
+
 }